@@ -0,0 +1,120 @@
+package com.uvideo;
+
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.avformat.AVIOContext;
+import org.bytedeco.ffmpeg.avformat.AVStream;
+import org.bytedeco.ffmpeg.avutil.AVDictionary;
+import org.bytedeco.ffmpeg.avutil.AVRational;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+
+import java.io.IOException;
+
+import static org.bytedeco.ffmpeg.global.avcodec.*;
+import static org.bytedeco.ffmpeg.global.avformat.*;
+import static org.bytedeco.ffmpeg.global.avutil.*;
+
+public class AudioMux {
+
+    /**
+     * Joins the rendered video, written without audio, and the audio of the source file into one
+     * webm. The packets are copied as they are, the audio isn't decoded and encoded again. Only the
+     * audio of the time of the video is copied, the timestamps stay those of the source, as the
+     * timestamps of the rendered frames. The audio must be opus or vorbis, the codecs of webm, see
+     * canCopy.
+     */
+
+    private AudioMux() {
+    }
+
+    public static boolean canCopy(int audioCodec) {
+        return audioCodec == AV_CODEC_ID_OPUS || audioCodec == AV_CODEC_ID_VORBIS;
+    }
+
+    public static void mux(String videoName, String sourceName, String dstName) throws Exception {
+        try (FFmpegFrameGrabber video = new FFmpegFrameGrabber(videoName);
+             FFmpegFrameGrabber source = new FFmpegFrameGrabber(sourceName)) {
+            video.start();
+            source.start();
+            AVFormatContext videoContext = video.getFormatContext(), sourceContext = source.getFormatContext();
+            int videoIndex = streamIndex(videoContext, AVMEDIA_TYPE_VIDEO);
+            int audioIndex = streamIndex(sourceContext, AVMEDIA_TYPE_AUDIO);
+            if (videoIndex < 0 || audioIndex < 0)
+                throw new IOException("no video in " + videoName + " or no audio in " + sourceName);
+            AVStream videoIn = videoContext.streams(videoIndex), audioIn = sourceContext.streams(audioIndex);
+            AVRational microseconds = av_make_q(1, AV_TIME_BASE);
+            long start = videoContext.start_time() == AV_NOPTS_VALUE ? 0 : videoContext.start_time();
+            long end = start + videoContext.duration();
+
+            AVFormatContext out = new AVFormatContext(null);
+            if (avformat_alloc_output_context2(out, null, "webm", dstName) < 0)
+                throw new IOException("can't create " + dstName);
+            try {
+                AVStream videoOut = copyStream(out, videoIn), audioOut = copyStream(out, audioIn);
+                AVIOContext pb = new AVIOContext(null);
+                if (avio_open(pb, dstName, AVIO_FLAG_WRITE) < 0)
+                    throw new IOException("can't open " + dstName);
+                out.pb(pb);
+                if (avformat_write_header(out, (AVDictionary) null) < 0)
+                    throw new IOException("can't write the header of " + dstName);
+
+                // the packets of both files in the order of their time
+                AVPacket v = next(video, videoIndex), a = next(source, audioIndex);
+                while (v != null || a != null) {
+                    boolean writeVideo = a == null || v != null && av_rescale_q(v.dts(), videoIn.time_base(), microseconds)
+                            <= av_rescale_q(a.dts(), audioIn.time_base(), microseconds);
+                    if (writeVideo) {
+                        write(out, v, videoIn, videoOut);
+                        v = next(video, videoIndex);
+                    } else {
+                        long time = av_rescale_q(a.pts(), audioIn.time_base(), microseconds);
+                        if (time >= end) a = null;
+                        else {
+                            if (time >= start) write(out, a, audioIn, audioOut);
+                            a = next(source, audioIndex);
+                        }
+                    }
+                }
+                av_write_trailer(out);
+            } finally {
+                if (out.pb() != null) avio_closep(out.pb());
+                avformat_free_context(out);
+            }
+            source.stop();
+            video.stop();
+        }
+    }
+
+    private static int streamIndex(AVFormatContext context, int type) {
+        for (int i = 0; i < context.nb_streams(); i++)
+            if (context.streams(i).codecpar().codec_type() == type) return i;
+        return -1;
+    }
+
+    private static AVStream copyStream(AVFormatContext out, AVStream in) throws IOException {
+        AVStream stream = avformat_new_stream(out, null);
+        if (stream == null || avcodec_parameters_copy(stream.codecpar(), in.codecpar()) < 0)
+            throw new IOException("can't copy the stream " + in.index());
+        stream.codecpar().codec_tag(0);
+        stream.time_base(in.time_base());
+        return stream;
+    }
+
+    /**
+     * the next packet of the stream, the packets of the other streams are skipped. null at the end
+     */
+    private static AVPacket next(FFmpegFrameGrabber g, int index) throws Exception {
+        AVPacket packet;
+        while ((packet = g.grabPacket()) != null)
+            if (packet.stream_index() == index) return packet;
+        return null;
+    }
+
+    private static void write(AVFormatContext out, AVPacket packet, AVStream in, AVStream stream) throws IOException {
+        av_packet_rescale_ts(packet, in.time_base(), stream.time_base());
+        packet.stream_index(stream.index());
+        packet.pos(-1);
+        if (av_interleaved_write_frame(out, packet) < 0)
+            throw new IOException("can't write a packet");
+    }
+}
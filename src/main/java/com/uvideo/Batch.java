@@ -0,0 +1,209 @@
+package com.uvideo;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.bytedeco.javacv.FFmpegLogCallback;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+@Slf4j
+public class Batch {
+
+    /**
+     * Converts many files in one JVM, OpenCV and the symbols of SYMBOLS_FOLDER are loaded once
+     * by MainClass and shared by all files.
+     * Arguments - any number of directories, globs (*.mp4, data_set\\input&output\\clip_??.webm) or
+     * manifests, text files with one file name per line. names without a path are taken from the
+     * input&output directory, as in MainClass. files already ending with _converted are skipped.
+     * IMAGE_THREADS - the number of images converted at the same time. the lines of a frame are
+     * already spread over all the line workers, so the videos are converted one after another.
+     * Every file gets its own prefix for frames, text and debug images - its file name, or its number
+     * in the batch and its name, e.g. 3-clip.mp4, if files in other directories have the same name.
+     * the summary with the time and frames per second of each file, by its prefix, is written to
+     * batch_summary.txt.
+     */
+
+    private static final int IMAGE_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+    private static final Set<String> IMAGE_EXTENSIONS = Set.of("png", "jpg", "jpeg", "bmp", "gif", "tif", "tiff", "webp");
+
+    private static class Result {
+        final File file;
+        final String key;
+        int frames;
+        long millis;
+        String error;
+
+        Result(File file, String key) {
+            this.file = file;
+            this.key = key;
+        }
+    }
+
+    private static String extension(File file) {
+        String name = file.getName();
+        return name.substring(name.lastIndexOf(".") + 1).toLowerCase();
+    }
+
+    private static boolean isImage(File file) {
+        return IMAGE_EXTENSIONS.contains(extension(file));
+    }
+
+    private static boolean isInput(File file) {
+        String name = file.getName();
+        return file.isFile() && name.contains(".") && !name.contains("_converted")
+                && !extension(file).equals("txt");
+    }
+
+    private static void listDirectory(File folder, PathMatcher matcher, List<File> files) {
+        try (Stream<Path> paths = Files.list(folder.toPath())) {
+            paths
+                    .filter(p -> matcher == null || matcher.matches(p.getFileName()))
+                    .map(Path::toFile)
+                    .filter(Batch::isInput)
+                    .sorted()
+                    .forEach(files::add);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void readManifest(File manifest, List<File> files) {
+        try (Scanner sc = new Scanner(manifest, StandardCharsets.UTF_8)) {
+            while (sc.hasNextLine()) {
+                String line = sc.nextLine().trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                files.add(new File(MainClass.resolveInput(line)));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public static List<File> collectFiles(String[] args) {
+        List<File> files = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.matches(".*[*?\\[{].*")) {
+                String resolved = MainClass.resolveInput(arg);
+                int separator = Math.max(resolved.lastIndexOf('\\'), resolved.lastIndexOf('/'));
+                File folder = new File(resolved.substring(0, separator));
+                PathMatcher matcher = FileSystems.getDefault()
+                        .getPathMatcher("glob:" + resolved.substring(separator + 1));
+                listDirectory(folder, matcher, files);
+                continue;
+            }
+            File file = new File(MainClass.resolveInput(arg));
+            if (file.isDirectory()) listDirectory(file, null, files);
+            else if (extension(file).equals("txt")) readManifest(file, files);
+            else files.add(file);
+        }
+        return files;
+    }
+
+    /**
+     * the prefixes of the outputs of the files, unique in the batch
+     */
+    static List<String> keys(List<File> files) {
+        Map<String, Integer> names = new HashMap<>();
+        for (File file : files) names.merge(file.getName(), 1, Integer::sum);
+        List<String> keys = new ArrayList<>(files.size());
+        for (int i = 0; i < files.size(); i++) {
+            String name = files.get(i).getName();
+            keys.add(names.get(name) > 1 ? (i + 1) + "-" + name : name);
+        }
+        return keys;
+    }
+
+    private static Result convert(File file, String key) {
+        Result result = new Result(file, key);
+        long time = System.currentTimeMillis();
+        try {
+            result.frames = MainClass.convert(file.getAbsolutePath(), key);
+        } catch (Exception e) {
+            e.printStackTrace();
+            result.error = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+        }
+        result.millis = System.currentTimeMillis() - time;
+        return result;
+    }
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.out.println("usage: Batch <directory|glob|manifest.txt>...");
+            return;
+        }
+        List<File> files = collectFiles(args);
+        List<String> keys = keys(files);
+        log.info("files in batch: " + files.size());
+        long startTimeMillis = System.currentTimeMillis();
+
+        ExecutorService imageExecutor = Executors.newFixedThreadPool(IMAGE_THREADS,
+                new ThreadFactoryBuilder().setNameFormat("batch-image-%d").build());
+        Map<Integer, Future<Result>> images = new LinkedHashMap<>();
+        for (int i = 0; i < files.size(); i++) {
+            File file = files.get(i);
+            String key = keys.get(i);
+            if (isImage(file)) images.put(i, imageExecutor.submit(() -> convert(file, key)));
+        }
+        imageExecutor.shutdown();
+
+        // the videos go one by one next to the images, the lines of both share the line workers
+        Result[] results = new Result[files.size()];
+        for (int i = 0; i < files.size(); i++)
+            if (!isImage(files.get(i))) results[i] = convert(files.get(i), keys.get(i));
+
+        for (var e : images.entrySet()) {
+            Result result;
+            try {
+                result = e.getValue().get();
+            } catch (Exception ex) {
+                ex.printStackTrace();
+                result = new Result(files.get(e.getKey()), keys.get(e.getKey()));
+                result.error = ex.getMessage();
+            }
+            results[e.getKey()] = result;
+        }
+        if (Arrays.stream(results).anyMatch(r -> r.error != null)) FFmpegLogCallback.set();
+
+        outputSummary(results, System.currentTimeMillis() - startTimeMillis);
+    }
+
+    private static void outputSummary(Result[] results, long totalMillis) {
+        StringBuffer buffer = new StringBuffer();
+        Formatter fmt = new Formatter(buffer);
+        int totalFrames = 0, failed = 0;
+        for (Result r : results) {
+            double seconds = r.millis / 1000.;
+            if (r.error != null) {
+                failed++;
+                fmt.format("%-40s FAILED %s\r\n", r.key, r.error);
+            } else fmt.format("%-40s frames=%d time=%.1fs fps=%.2f\r\n",
+                    r.key, r.frames, seconds, seconds > 0 ? r.frames / seconds : 0.);
+            totalFrames += r.frames;
+        }
+        double totalSeconds = totalMillis / 1000.;
+        fmt.format("total files=%d failed=%d frames=%d time=%.1fs fps=%.2f\r\n",
+                results.length, failed, totalFrames, totalSeconds, totalSeconds > 0 ? totalFrames / totalSeconds : 0.);
+
+        System.out.print(buffer);
+        File file = new File(MainClass.PATCH + "batch_summary.txt");
+        try (PrintWriter writer = new PrintWriter(file, StandardCharsets.UTF_8)) {
+            writer.print(buffer);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        System.out.println("Runtime: " + TimeUnit.MILLISECONDS.toSeconds(totalMillis) + "s");
+    }
+}
@@ -2,7 +2,10 @@ package com.uvideo;
 
 import com.google.common.primitives.Booleans;
 import lombok.extern.slf4j.Slf4j;
+import org.opencv.core.Core;
 import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
 
 import java.io.File;
 import java.io.IOException;
@@ -10,15 +13,13 @@ import java.io.PrintWriter;
 import java.lang.reflect.Array;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
-import static com.uvideo.MainClass.*;
-
 @Slf4j
 public class CharacterSet<T> {
 
@@ -30,27 +31,57 @@ public class CharacterSet<T> {
      *  rotated right; next character. the content does not change in any way.
      * size - number of characters.
      * uniqueSize - number of unique, non-rotated characters.
-     * used - (uniqueSize) the number of times the symbol was applied. changes during parallel processing.
+     * used - (uniqueSize) the number of times the symbol was applied. changes during parallel processing,
+     *  so it's striped (LongAdder) and read as a snapshot, see getUsed.
      * valid - (uniqueSize) valid characters that make up currentUSize. change to " remove.+" functions in
      *  single-threaded mode.
+     * loadedValid - (uniqueSize) valid characters right after loading, used in the DETERMINISTIC mode.
      * currentUSize - the number of valid characters (not marked with a FALSE flag or rejected during
      *  the call of the corresponding functions) without filling characters.
      * correction(cCr) - (size) compensates for the mismatch of a larger number of pixels in heavy characters.
      * chars - (size) list of characters from the file chars.txt, which may be missing(to support older
      *  character sets). does not change after loading.
      * flags - (uniqueSize) flags obtained from file names.
+     * sortedCodePoints, sortedSymbols - the code points of chars.txt in ascending order and the numbers
+     *  of their symbols, for getByCodePoint without boxing. a repeated code point has the last symbol.
+     * blank - (size) the symbol is entirely white, e.g. the space.
+     * inkRows - (size) the rows of the symbol packed into bits, bit j of a row is set if the pixel j
+     *  is darker than 128. null if the symbol is wider than 64 pixels. used by the "bits" MATCHER.
+     * pixels - (size) the pixels of the symbol row by row, read by the "exact" MATCHER without the Mat.
+     * coarse, coarseCols - (size) the pixels of the symbol downsampled by 2 and their number of columns.
+     *  used by the "pyramid" MATCHER.
+     * cells, blankCells - the number of positions selected by ProcessPixelLine and of those of them
+     *  that were blank and got the space without comparing the symbols.
+     * popular - the numbers of the POPULAR most used valid symbols, ProcessPixelLine compares them first.
+     *  updated in the background after every frame, see refreshPopular.
+     * profile - the statistics of SymbolProfiler, null if the set isn't profiled.
+     * spin - the SPIN option the set was created with.
+     * used, valid, currentUSize, cells, blankCells, popular and profile are the state of one job, the
+     * other fields are shared by the sets of all jobs with the same symbols, see forJob.
      * */
     private final T[]          symbols;
     private final int          size;
     private final int          uniqueSize;
     private       int          currentUSize;
-    private final AtomicLong[] used;
+    private final LongAdder[]  used;
     private final boolean[]    valid;
+    private final boolean[]    loadedValid;
     private final double[]     coefficient;
     private final double[]     correction;
     private final int[]        flags;
     private final int[]        codePoints;
-    private final HashMap<Integer, T> symbolsByCodePoints;
+    private final int[]        sortedCodePoints;
+    private final int[]        sortedSymbols;
+    private final boolean[]    blank;
+    private final long[][]     inkRows;
+    private final byte[][]     pixels;
+    private final byte[][]     coarse;
+    private final int[]        coarseCols;
+    private final LongAdder    cells = new LongAdder();
+    private final LongAdder    blankCells = new LongAdder();
+    private volatile int[]     popular = new int[0];
+    private volatile SymbolProfile profile;
+    private final boolean      spin;
     // ~~~~~ Flags ~~~~~
     public static final int FLAG_DEFAULT = 0;
     public static final int FLAG_FALSE = -1;
@@ -59,41 +90,49 @@ public class CharacterSet<T> {
     public static final int FLAG_FILLING_SOLO = 2;
     public static final int FLAG_DONT_MOVE = 3;
     public static final int FLAG_DONT_SPIN = 4;
+    private static final int POPULAR = 4;
 
-    public CharacterSet(Class<T> clazz, List<T> symbols, List<Integer> flags, List<Integer> codePoints) {
+    public CharacterSet(Class<T> clazz, List<T> symbols, List<Integer> flags, List<Integer> codePoints, boolean spin) {
         if (symbols == null) throw new NullPointerException("symbols == null");
+        this.spin = spin;
         size = symbols.size();
         if (codePoints != null && !codePoints.isEmpty()) {
             if (codePoints.size() != flags.size())
                 throw new IllegalArgumentException("chars != null && chars.size() != 0 && chars.size() != flags.size()");
-            if (SPIN && size / 3 != codePoints.size() || !SPIN && size != codePoints.size())
+            if (spin && size / 3 != codePoints.size() || !spin && size != codePoints.size())
                 throw new IllegalArgumentException("chars != null && chars.size() != 0 && SPIN && symbols.size() / 3 != chars.size() || !SPIN && symbols.size() != chars.size()");
         }
-        if (SPIN && size / 3 != flags.size() || !SPIN && size != flags.size())
+        if (spin && size / 3 != flags.size() || !spin && size != flags.size())
             throw new IllegalArgumentException("SPIN && symbols.size() / 3 != flags.size() || !SPIN && symbols.size() != flags.size()");
-        if (SPIN) {
-            if (size % 3 != 0) throw new IllegalArgumentException("symbols.size() % 3 != 0 && MainClass.SPIN");
+        if (spin) {
+            if (size % 3 != 0) throw new IllegalArgumentException("symbols.size() % 3 != 0 && SPIN");
             uniqueSize = size / 3;
         } else uniqueSize = size;
 
         this.symbols = (T[]) Array.newInstance(clazz, size);
         this.flags = new int[uniqueSize];
+        TreeMap<Integer, Integer> symbolsByCodePoints;
         if (codePoints != null && !codePoints.isEmpty()) {
             this.codePoints = new int[uniqueSize];
-            this.symbolsByCodePoints = new HashMap<>();
+            symbolsByCodePoints = new TreeMap<>();
         } else {
             this.codePoints = null;
-            this.symbolsByCodePoints = null;
+            symbolsByCodePoints = null;
         }
-        used = new AtomicLong[uniqueSize];
+        used = new LongAdder[uniqueSize];
         valid = new boolean[uniqueSize];
         coefficient = new double[size];
         correction = new double[size];
+        blank = new boolean[size];
+        inkRows = new long[size][];
+        pixels = new byte[size][];
+        coarse = new byte[size][];
+        coarseCols = new int[size];
 
         for (int i = 0; i < uniqueSize; i++) {
             int flag = flags.get(i);
             this.flags[i] = flag;
-            used[i] = new AtomicLong(0L);
+            used[i] = new LongAdder();
             valid[i] = flag != FLAG_FILLING_SOLO && flag != FLAG_FALSE && flag / FLAG_FILLING != 1;
             if (this.codePoints != null) {
                 this.codePoints[i] = codePoints.get(i);
@@ -106,6 +145,22 @@ public class CharacterSet<T> {
             double colsC;
             double cCr = 1;
             if (symbol instanceof Mat s) {
+                blank[i] = Core.minMaxLoc(s).minVal == 255.;
+                if (s.cols() <= Long.SIZE) {
+                    long[] rows = new long[s.rows()];
+                    for (int r = 0; r < s.rows(); r++)
+                        for (int c = 0; c < s.cols(); c++)
+                            if (s.get(r, c)[0] < 128.) rows[r] |= 1L << c;
+                    inkRows[i] = rows;
+                }
+                pixels[i] = new byte[(int) s.total()];
+                s.get(0, 0, pixels[i]);
+                Mat half = new Mat();
+                Imgproc.resize(s, half, new Size(Math.max(1, s.cols() / 2), Math.max(1, s.rows() / 2)), 0, 0, Imgproc.INTER_AREA);
+                coarse[i] = new byte[(int) half.total()];
+                half.get(0, 0, coarse[i]);
+                coarseCols[i] = half.cols();
+                half.release();
                 //(double) symbol.cols() / symbol.rows() / 2.
                 double halfRows = s.rows() / 2.;
                 colsC = Math.pow(s.cols(), 0.75) / halfRows;
@@ -120,10 +175,10 @@ public class CharacterSet<T> {
                     //cCr = 1. + Math.pow(sum, 2) / (Math.pow(s.rows(), 7) * 2.213);
                 }
 
-                if (!SPIN || i % 3 == 0) {
-                    int index = SPIN ? i / 3 : i;
+                if (!spin || i % 3 == 0) {
+                    int index = spin ? i / 3 : i;
                     if (this.codePoints != null) {
-                        this.symbolsByCodePoints.put(this.codePoints[index], symbol);
+                        symbolsByCodePoints.put(this.codePoints[index], i);
                     }
                     System.out.println("cCr " + index + (this.codePoints != null ? " " + this.codePoints[index] + " " : "") + "= " + cCr);
                 }
@@ -135,24 +190,109 @@ public class CharacterSet<T> {
             correction[i] = cCr;
         }
 
+        if (symbolsByCodePoints != null) {
+            sortedCodePoints = symbolsByCodePoints.keySet().stream().mapToInt(Integer::intValue).toArray();
+            sortedSymbols = symbolsByCodePoints.values().stream().mapToInt(Integer::intValue).toArray();
+        } else {
+            sortedCodePoints = new int[0];
+            sortedSymbols = new int[0];
+        }
+
+        loadedValid = valid.clone();
         currentUSize = (int) (Booleans.asList(valid).stream().filter(Boolean::booleanValue).count());
         log.info("number of valid characters without fill: " + currentUSize);
     }
 
+    private CharacterSet(CharacterSet<T> loaded) {
+        symbols = loaded.symbols;
+        size = loaded.size;
+        uniqueSize = loaded.uniqueSize;
+        loadedValid = loaded.loadedValid;
+        coefficient = loaded.coefficient;
+        correction = loaded.correction;
+        flags = loaded.flags;
+        codePoints = loaded.codePoints;
+        sortedCodePoints = loaded.sortedCodePoints;
+        sortedSymbols = loaded.sortedSymbols;
+        blank = loaded.blank;
+        inkRows = loaded.inkRows;
+        pixels = loaded.pixels;
+        coarse = loaded.coarse;
+        coarseCols = loaded.coarseCols;
+        spin = loaded.spin;
+        used = new LongAdder[uniqueSize];
+        for (int i = 0; i < uniqueSize; i++) used[i] = new LongAdder();
+        valid = loadedValid.clone();
+        currentUSize = (int) (Booleans.asList(valid).stream().filter(Boolean::booleanValue).count());
+    }
+
+    /**
+     * a set with the same symbols and a new state: nothing used, the valid characters of loadedValid
+     */
+    public CharacterSet<T> forJob() {
+        return new CharacterSet<>(this);
+    }
+
     public T get(int index) {
         return symbols[index];
     }
 
     public T getUnique(int index) {
-        if (SPIN) index /= 3;
+        if (spin) index /= 3;
         return symbols[index];
     }
 
     public T getByCodePoint(Integer c) {
-        if (c == null || symbolsByCodePoints == null) {
-            return null;
-        }
-        return symbolsByCodePoints.get(c);
+        if (c == null) return null;
+        int index = indexOfCodePoint(c);
+        return index != -1 ? symbols[index] : null;
+    }
+
+    /**
+     * the number of the symbol of the code point, -1 if there is none
+     */
+    public final int indexOfCodePoint(int c) {
+        int i = Arrays.binarySearch(sortedCodePoints, c);
+        return i >= 0 ? sortedSymbols[i] : -1;
+    }
+
+    public boolean isBlank(int index) {
+        return blank[index];
+    }
+
+    /**
+     * the rows of the symbol as bits, null if it's wider than 64 pixels
+     */
+    public long[] getInkRows(int index) {
+        return inkRows[index];
+    }
+
+    /**
+     * the pixels of the symbol, row by row, as many in a row as the symbol has columns
+     */
+    public byte[] getPixels(int index) {
+        return pixels[index];
+    }
+
+    /**
+     * the pixels of the symbol downsampled by 2, row by row, getCoarseCols(index) in a row
+     */
+    public byte[] getCoarse(int index) {
+        return coarse[index];
+    }
+
+    public int getCoarseCols(int index) {
+        return coarseCols[index];
+    }
+
+    public void countCell(boolean blank) {
+        cells.increment();
+        if (blank) blankCells.increment();
+    }
+
+    public String getCellStats() {
+        long all = cells.sum(), blank = blankCells.sum();
+        return String.format("cells=%d blank=%d (%.1f%%)", all, blank, all == 0 ? 0. : blank * 100. / all);
     }
 
     public double getCoefficient(int index) {
@@ -165,23 +305,28 @@ public class CharacterSet<T> {
 
     public T getWithInc(int index) {
         T symbol;
-        if (SPIN) {
-            used[index / 3].incrementAndGet();
+        if (spin) {
+            used[index / 3].increment();
             symbol = symbols[index - index % 3];
         } else {
-            used[index].incrementAndGet();
+            used[index].increment();
             symbol = symbols[index];
         }
         return symbol;
     }
 
     public boolean isValid(int index) {
-        if (SPIN) index /= 3;
+        if (spin) index /= 3;
         return valid[index];
     }
 
+    public boolean isLoadedValid(int index) {
+        if (spin) index /= 3;
+        return loadedValid[index];
+    }
+
     public int getFlag(int index) {
-        if (SPIN) index /= 3;
+        if (spin) index /= 3;
         return flags[index];
     }
 
@@ -189,10 +334,19 @@ public class CharacterSet<T> {
         return codePoints != null;
     }
 
+    /**
+     * the code point of the symbol, -1 without chars.txt
+     */
+    public int codePointAt(int index) {
+        if (this.codePoints == null) return -1;
+        if (spin) index /= 3;
+        return codePoints[index];
+    }
+
     public Optional<Integer> getCodePoint(int index) {
         if (this.codePoints == null)
             return Optional.empty();
-        if (SPIN) index /= 3;
+        if (spin) index /= 3;
         return Optional.of(codePoints[index]);
     }
 
@@ -223,10 +377,11 @@ public class CharacterSet<T> {
     }
 
     public void removeMostRarelyUsed(double percent) {
+        long[] used = getUsed();
         IntStream.range(1, uniqueSize)
                 .boxed()
                 .filter(i -> valid[i])
-                .collect(Collectors.toMap(i -> i, i -> used[i].get()))
+                .collect(Collectors.toMap(i -> i, i -> used[i]))
                 .entrySet()
                 .stream()
                 .sorted(Map.Entry.<Integer, Long>comparingByValue().reversed())
@@ -238,10 +393,11 @@ public class CharacterSet<T> {
     }
 
     public void removeMostOftenUsed(double percent) {
+        long[] used = getUsed();
         IntStream.range(1, uniqueSize)
                 .boxed()
                 .filter(i -> valid[i])
-                .collect(Collectors.toMap(i -> i, i -> used[i].get()))
+                .collect(Collectors.toMap(i -> i, i -> used[i]))
                 .entrySet()
                 .stream()
                 .sorted(Map.Entry.comparingByValue())
@@ -252,18 +408,79 @@ public class CharacterSet<T> {
         log.info("Ignore " + (before - currentUSize) + " symbols");
     }
 
-    public void removeNull() {
+    /**
+     * removes the characters used limit times or less
+     */
+    public void removeNull(long limit) {
+        long[] used = getUsed();
         for (int i = 1; i < uniqueSize; i++)
-            if (used[i].get() <= 10L) valid[i] = false;
+            if (used[i] <= limit) valid[i] = false;
         int before = currentUSize;
         currentUSize = (int) (Booleans.asList(valid).stream().filter(Boolean::booleanValue).count());
         log.info("Ignore " + (before - currentUSize) + " symbols");
     }
 
-    public void outputStatsToFile() {
-        File file = new File(String.format("%s%s\\stats_%s_%s.txt"
-                , MainClass.PATCH, SYMBOLS_FOLDER,
-                SYMBOLS_FOLDER, MainClass.getInputFileName()));
+    /**
+     * starts collecting the statistics of the characters, ProcessPixelLine compares all characters
+     * completely while the set is profiled, which is slower
+     */
+    public SymbolProfile startProfile() {
+        SymbolProfile profile = new SymbolProfile(uniqueSize, spin);
+        this.profile = profile;
+        return profile;
+    }
+
+    public void stopProfile() {
+        profile = null;
+    }
+
+    public SymbolProfile getProfile() {
+        return profile;
+    }
+
+    public int[] getPopular() {
+        return popular;
+    }
+
+    public void refreshPopular() {
+        long[] used = getUsed();
+        popular = IntStream.range(1, uniqueSize)
+                .filter(i -> valid[i] && used[i] > 0)
+                .boxed()
+                .sorted(Comparator.comparingLong((Integer i) -> used[i]).reversed())
+                .limit(POPULAR)
+                .mapToInt(i -> spin ? i * 3 : i)
+                .toArray();
+    }
+
+    /**
+     * the usage of the characters at one moment, the remove functions and the stats work on it
+     */
+    public long[] getUsed() {
+        long[] snapshot = new long[uniqueSize];
+        for (int i = 0; i < uniqueSize; i++) snapshot[i] = used[i].sum();
+        return snapshot;
+    }
+
+    public boolean[] getValid() {
+        return valid.clone();
+    }
+
+    /**
+     * restores the usage and the valid characters saved by getUsed() and getValid()
+     */
+    public void restore(long[] used, boolean[] valid) {
+        if (used.length != uniqueSize || valid.length != uniqueSize)
+            throw new IllegalArgumentException("used.length != uniqueSize || valid.length != uniqueSize");
+        for (int i = 0; i < uniqueSize; i++) {
+            this.used[i].reset();
+            this.used[i].add(used[i]);
+            this.valid[i] = valid[i];
+        }
+        currentUSize = (int) (Booleans.asList(this.valid).stream().filter(Boolean::booleanValue).count());
+    }
+
+    public void outputStatsToFile(File file) {
         try (PrintWriter writer = new PrintWriter(file, StandardCharsets.UTF_8)) {
             writer.println(this);
         } catch (IOException e) {
@@ -275,22 +492,28 @@ public class CharacterSet<T> {
         return size;
     }
 
+    public boolean isSpin() {
+        return spin;
+    }
+
     @Override
     public String toString() {
         StringBuffer buffer = new StringBuffer();
         Formatter fmt = new Formatter(buffer);
+        fmt.format("%s\r\n", getCellStats());
+        long[] used = getUsed();
         Integer c = null;
-        if (SPIN)
+        if (spin)
             for (int i = 0; i < size / 3; i++) {
                 if (codePoints != null) c = codePoints[i];
                 fmt.format("char=%s number=%d used=%d valid=%b c=%f cCr=%f flag=%d\r\n",
-                        Arrays.toString(Character.toChars(c)), i + 1, used[i].get(), valid[i], coefficient[i * 3], correction[i * 3], flags[i]);
+                        Arrays.toString(Character.toChars(c)), i + 1, used[i], valid[i], coefficient[i * 3], correction[i * 3], flags[i]);
             }
         else
             for (int i = 0; i < size; i++) {
                 if (codePoints != null) c = codePoints[i];
                 fmt.format("char=%s number=%d used=%d valid=%b c=%f cCr=%f flag=%d\r\n",
-                        Arrays.toString(Character.toChars(c)), i + 1, used[i].get(), valid[i], coefficient[i], correction[i], flags[i]);
+                        Arrays.toString(Character.toChars(c)), i + 1, used[i], valid[i], coefficient[i], correction[i], flags[i]);
             }
         return buffer.toString();
     }
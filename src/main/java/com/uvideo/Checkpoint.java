@@ -0,0 +1,88 @@
+package com.uvideo;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+@Slf4j
+public class Checkpoint {
+
+    /**
+     * The state of a render after the frame lastFrame, saved every CHECKPOINT_FRAMES frames
+     * next to the output video as <output>.checkpoint.
+     * lastFrame - the number of the last rendered frame from the start of the file.
+     * createdFrames - the number of rendered frames, SKIPPED_FRAMES are not counted.
+     * parts - the finished parts of the output video, the video is written in parts, a new one
+     *  after each checkpoint, and the parts are joined at the end.
+     * used, valid - the state of the characters, see CharacterSet.
+     * settings - the settings of the render, a checkpoint with other settings is not resumed.
+     */
+
+    public final int lastFrame;
+    public final int createdFrames;
+    public final List<String> parts;
+    public final long[] used;
+    public final boolean[] valid;
+    public final String settings;
+
+    public Checkpoint(int lastFrame, int createdFrames, List<String> parts, long[] used, boolean[] valid, String settings) {
+        this.lastFrame = lastFrame;
+        this.createdFrames = createdFrames;
+        this.parts = List.copyOf(parts);
+        this.used = used;
+        this.valid = valid;
+        this.settings = settings;
+    }
+
+    /**
+     * writes a temporary file and replaces the previous checkpoint with it, so a crash
+     * while saving leaves the previous checkpoint
+     */
+    public void save(File file) throws IOException {
+        Properties p = new Properties();
+        p.setProperty("lastFrame", String.valueOf(lastFrame));
+        p.setProperty("createdFrames", String.valueOf(createdFrames));
+        p.setProperty("parts", String.join("|", parts));
+        StringBuilder usedString = new StringBuilder(), validString = new StringBuilder();
+        for (int i = 0; i < used.length; i++) {
+            if (i != 0) usedString.append(',');
+            usedString.append(used[i]);
+            validString.append(valid[i] ? '1' : '0');
+        }
+        p.setProperty("used", usedString.toString());
+        p.setProperty("valid", validString.toString());
+        p.setProperty("settings", settings);
+
+        File temp = new File(file.getPath() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+            p.store(writer, null);
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * returns null if there is no checkpoint
+     */
+    public static Checkpoint load(File file) throws IOException {
+        if (!file.exists()) return null;
+        Properties p = new Properties();
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            p.load(reader);
+        }
+        String partsString = p.getProperty("parts");
+        List<String> parts = partsString.isEmpty() ? new ArrayList<>() : Arrays.asList(partsString.split("\\|"));
+        long[] used = Arrays.stream(p.getProperty("used").split(",")).mapToLong(Long::parseLong).toArray();
+        String validString = p.getProperty("valid");
+        boolean[] valid = new boolean[validString.length()];
+        for (int i = 0; i < valid.length; i++) valid[i] = validString.charAt(i) == '1';
+        return new Checkpoint(Integer.parseInt(p.getProperty("lastFrame")),
+                Integer.parseInt(p.getProperty("createdFrames")), parts, used, valid, p.getProperty("settings"));
+    }
+}
@@ -1,192 +1,140 @@
 package com.uvideo;
 
-import org.jetbrains.annotations.NotNull;
-
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 
-import static com.uvideo.MainClass.FILL_ALIGNMENT;
 import static com.uvideo.ProcessPixelLine.FILL_SPACING;
 
-public class FillRingList implements Cloneable {
+public class FillRingList {
 
     /**
-     * size - size of WNLayer.
-     * WNLayer - contains the value a-the width of the character, b-the number
-     *  of the character in the usual order. Added in the ProcessPixelLine
-     *  constructor if the character is marked as a fill character. It usually
-     *  contains one element, but it can contain several if there are several
-     *  characters that have FILLING flags and belong to the same xxx_fill
-     *  layer.
+     * A fill layer. It's compiled once when the symbols are loaded and is shared by all lines of all
+     * frames, a line only has its start position in the chain of the layer, see startPix.
+     * size - the number of characters in the layer. It usually contains one character, but it can
+     *  contain several if there are several characters that have FILLING flags and belong to the
+     *  same xxx_fill layer.
+     * widths, glyphs - the width of each character and its number in the usual order.
+     * offsets - the position of each character in the chain, offsets[size] = pixLength.
      * pixLength - length of the entire chain with FILL_SPACING.
-     * select - contains a pointer to which position corresponds to which character.
-     * startPos, startPosPix - the symbol and the position at which this fill layer
-     *  should start.
+     * shifts, selected - for every position of the chain, the shift to the start of the character
+     *  and its number, see shift and glyph.
+     * alignment - the FILL_ALIGNMENT option of the layer.
      */
 
-    private static final int fillSpacing = FILL_ALIGNMENT ? FILL_SPACING : 0;
-
-    private List<Pair<Integer, Integer>> WNLayer;
-    private Iterator<Pair<Integer, Integer>> iter;
-    private int size, pixLength;
-    private ArrayList<Integer> select;
-    private int startPos, startPosPix;
-
-    private void initSelect() {
-        select = new ArrayList<>();
-        int el = -1, pos = 0;
-        for(int i = 0; i < pixLength; i++){
-            if (pos <= i){
-                el++;
-                pos += WNLayer.get(el).a + fillSpacing;
-            }
-            select.add(el);
-        }
-    }
+    private final boolean alignment;
+    private final int fillSpacing;
 
-    FillRingList(FillRingList other){
-        this.WNLayer = new ArrayList<>();
-        WNLayer.addAll(other.WNLayer);
-        iter = WNLayer.iterator();
-        size = other.size;
-        pixLength = other.pixLength;
-        select = other.select;
-        startPos = other.startPos;
-        startPosPix = other.startPosPix;
-    }
-
-    FillRingList(List<Pair<Integer, Integer>> arr) {
-        this.WNLayer = arr;
-        iter = arr.iterator();
-        if (!iter.hasNext())
-            throw new IllegalArgumentException("the array contains no elements");
-        startPos = 0;
-        startPosPix = arr.getFirst().a;
-        size = arr.size();
-        pixLength = 0;
-        while (iter.hasNext())
-            pixLength += iter.next().a + fillSpacing;
-        iter = arr.iterator();
-        initSelect();
-    }
+    private final int size, pixLength;
+    private final int[] widths, glyphs, offsets;
+    private final int[] shifts, selected;
 
-    FillRingList(Pair<Integer, Integer> p) {
-        this.WNLayer = new ArrayList<>();
-        WNLayer.add(p);
-        iter = WNLayer.iterator();
-        if (!iter.hasNext())
-            throw new IllegalArgumentException("the array contains no elements");
-        startPos = 0;
-        startPosPix = WNLayer.getFirst().a;
-        size = 1;
-        pixLength = p.a + fillSpacing;
-        iter = WNLayer.iterator();
-        initSelect();
-    }
+    // the order of the last frame of swapped, shared by the lines of the frame
+    private volatile Swapped lastSwapped;
 
-    public void add(Pair<Integer, Integer> var){
-        WNLayer.add(var);
-        size++;
-        pixLength += var.a + fillSpacing;
-        for (int i = 0; i < var.a + fillSpacing; i++)
-            select.add(size - 1);
-    }
+    private record Swapped(int key, FillRingList list) {}
 
-    public void throwIter(){
-        iter = WNLayer.iterator();
-    }
+    /**
+     * arr - a-the width of the character, b-the number of the character in the usual order
+     */
+    FillRingList(List<Pair<Integer, Integer>> arr, boolean alignment) {
+        if (arr.isEmpty())
+            throw new IllegalArgumentException("the array contains no elements");
+        this.alignment = alignment;
+        fillSpacing = alignment ? FILL_SPACING : 0;
+        size = arr.size();
+        widths = new int[size];
+        glyphs = new int[size];
+        offsets = new int[size + 1];
+        for (int i = 0; i < size; i++) {
+            widths[i] = arr.get(i).a;
+            glyphs[i] = arr.get(i).b;
+            offsets[i + 1] = offsets[i] + widths[i] + fillSpacing;
+        }
+        pixLength = offsets[size];
 
-    private void shiftArrLeftRound(int count, final int ignore) {
-        count %= size - ignore;
-        List<Pair<Integer, Integer>> newArr = new ArrayList<>(size);
-        for (int i = 0; i < size - ignore; i++){
-            int second = i + count;
-            if (second > size - 1 - ignore) second -= size - ignore;
-            newArr.add(WNLayer.get(second));
+        // the character is selected according to the position, as if the entire
+        // line before it represented this fill layer.
+        shifts = new int[pixLength];
+        selected = new int[pixLength];
+        int s = 0;
+        for (int pixPos = 0; pixPos < pixLength; pixPos++) {
+            while (offsets[s + 1] <= pixPos) s++;
+            if (alignment && pixPos > offsets[s]) {
+                // inside a character, the next one is put at its end
+                shifts[pixPos] = offsets[s + 1] - pixPos;
+                selected[pixPos] = glyphs[s + 1 == size ? 0 : s + 1];
+            } else selected[pixPos] = glyphs[s];
         }
-        for (int i = size - ignore; i < size; i++)
-            newArr.add(WNLayer.get(i));
-        WNLayer = newArr;
     }
 
-    private void shiftFirstCharacter(int count) {
-        List<Pair<Integer, Integer>> newArr = new ArrayList<>(size);
-        Pair<Integer, Integer> temp = WNLayer.getFirst();
-        for (int i = 0; i < count; i++)
-            newArr.add(WNLayer.get(i + 1));
-        newArr.add(temp);
-        for (int i = count + 1; i < size; i++)
-            newArr.add(WNLayer.get(i));
-        WNLayer = newArr;
+    private int startPosPix(int frameNumber, int lineLumber) {
+        int pos = lineLumber % size;
+        pos += (lineLumber % 2 == 0) ? frameNumber % size : -(frameNumber % size);
+        if (pos < 0) pos += size;
+        return offsets[pos % size];
     }
 
-    public FillRingList setIterWithFL(int frameNumber, int lineNumber){
+    /**
+     * the start of the line in the chain, the lines move every 22 frames
+     */
+    public int startPix(int frameNumber, int lineNumber) {
         // moving lines
         frameNumber /= 22; // changes every n frame
-        return setStartPos(frameNumber, lineNumber);
+        return startPosPix(frameNumber, lineNumber);
     }
 
-    public FillRingList setIterWithFLSwap(int frameNumber, int lineLumber){
+    /**
+     * the layer with the order of characters of the frame, it changes every 10 frames. the same for
+     * all lines of the frame, so it's built once.
+     */
+    public FillRingList swapped(int frameNumber) {
         // moving symbols
         if (size < 2) return this;
-        // ignore the space character at the end
-        int ignore = 1;
-        // the two functions represent different epochs of shifts. shiftArrLeftRound-shift
-        // the entire array to the left. shiftFirstCharacter - when a single character
-        // travels to the end of the array to the right.
-        shiftArrLeftRound(frameNumber / 10 / (size - ignore), ignore);
-        shiftFirstCharacter(frameNumber / 10 % (size - ignore));
-        initSelect();
-        // after a full update, the row is shifted to the right
-        frameNumber /= (size - ignore) * 10;
-        return setStartPos(frameNumber, lineLumber);
-    }
-
-    @NotNull
-    private FillRingList setStartPos(int frameNumber, int lineLumber) {
-        int pos = lineLumber % size;
-        pos += (lineLumber % 2 == 0) ? frameNumber % size : -(frameNumber % size);
-        if (pos < 0) pos += size;
-        startPos = pos % size;
-        startPosPix = 0;
-        for (int i = 0; i < startPos; i++) {
-            next();
-            startPosPix += WNLayer.get(i).a + fillSpacing;
-        }
-        return this;
-    }
+        int key = frameNumber / 10;
+        Swapped last = lastSwapped;
+        if (last != null && last.key() == key) return last.list();
 
-    public Pair<Integer, Integer> next() {
-        if (!iter.hasNext())
-            iter = WNLayer.iterator();
-        return iter.next();
+        // ignore the space character at the end
+        int ignore = 1, count = size - ignore;
+        // the two shifts represent different epochs. the first shifts the entire array to
+        // the left. the second - when a single character travels to the end of the array to the right.
+        int[] order = new int[size];
+        int left = key / count % count;
+        for (int i = 0; i < count; i++) order[i] = (i + left) % count;
+        for (int i = count; i < size; i++) order[i] = i;
+        int first = order[0], travel = key % count;
+        System.arraycopy(order, 1, order, 0, travel);
+        order[travel] = first;
+
+        List<Pair<Integer, Integer>> arr = new ArrayList<>(size);
+        for (int i : order) arr.add(new Pair<>(widths[i], glyphs[i]));
+        FillRingList list = new FillRingList(arr, alignment);
+        lastSwapped = new Swapped(key, list);
+        return list;
     }
 
-    public Pair<Integer, Integer> next(int pos) {
-        // the character is selected according to the position, as if the entire
-        // line before it represented this fill layer.
-        if (!FILL_ALIGNMENT && size == 1) return new Pair<>(fillSpacing, WNLayer.getFirst().b);
-        pos += startPosPix;
-        int pixPos = pos % pixLength;
-        int s = select.get(pixPos);
-        if (!FILL_ALIGNMENT) return new Pair<>(0, WNLayer.get(s).b);
-        int plus = 0;
-        if (pixPos > 0 && select.get(pixPos - 1) == s) {
-            do plus++;
-            while (pixPos + plus < pixLength && select.get(pixPos + plus) == s);
-            if (pixPos + plus == pixLength) s = 0;
-            else s++;
-        }
-        return new Pair<>(plus, WNLayer.get(s).b);
+    /**
+     * the start of the line in the chain of swapped(frameNumber), after a full update the line is
+     * shifted to the right
+     */
+    public int swappedStartPix(int frameNumber, int lineNumber) {
+        if (size < 2) return widths[0];
+        return startPosPix(frameNumber / ((size - 1) * 10), lineNumber);
     }
 
-    public List<Pair<Integer, Integer>> getArr() {
-        return WNLayer;
+    /**
+     * the shift of the position pos of the line to the start of the next fill character, it's 0
+     * if FILL_ALIGNMENT is disabled
+     */
+    public int shift(int pos, int startPix) {
+        return shifts[(pos + startPix) % pixLength];
     }
 
-    public Iterator<Pair<Integer, Integer>> getIter() {
-        return iter;
+    /**
+     * the number of the fill character at the position pos of the line
+     */
+    public int glyph(int pos, int startPix) {
+        return selected[(pos + startPix) % pixLength];
     }
 
     public int getSize() {
@@ -196,23 +144,4 @@ public class FillRingList implements Cloneable {
     public int getPixLength() {
         return pixLength;
     }
-
-    public ArrayList<Integer> getSelect() {
-        return select;
-    }
-
-    public int getStartPos() {
-        return startPos;
-    }
-
-    public int getStartPosPix() {
-        return startPosPix;
-    }
-
-    @Override
-    public FillRingList clone() throws CloneNotSupportedException {
-        FillRingList list = (FillRingList) super.clone();
-        list.throwIter();
-        return list;
-    }
 }
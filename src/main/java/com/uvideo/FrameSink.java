@@ -0,0 +1,216 @@
+package com.uvideo;
+
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.OpenCVFrameConverter;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import static org.bytedeco.ffmpeg.global.avcodec.AV_CODEC_ID_VP9;
+
+public interface FrameSink extends Closeable {
+
+    /**
+     * Where the rendered frames of a video go, chosen by ENCODER:
+     * vp9 - webm, VP9 as good as before, but on ENCODER_THREADS threads with row-mt and tiles.
+     * vp9-fast - webm, the realtime deadline and a high speed, for a fast look at a render.
+     * y4m - raw YUV4MPEG2 to <file>_converted.y4m, no audio, for any encoder.
+     * pipe - raw YUV4MPEG2 to the standard output, e.g. MainClass | ffmpeg -i - ..., only if
+     *  MainClass.ENCODER is pipe, MainClass.VIDEO_OUT, the progress and the logs go to the standard error then.
+     * ENCODER_SPEED (cpu-used) and ENCODER_DEADLINE override the ones of the profile, -1 and "" keep them.
+     * Every sink encodes on its own thread, see Async, so the render doesn't wait for the encoder.
+     */
+
+    int QUEUE_FRAMES = 8;
+
+    /**
+     * timestamp - of the frame in microseconds
+     */
+    void record(Frame frame, long timestamp) throws Exception;
+
+    static boolean isRaw(RenderConfig config) {
+        return config.ENCODER.equals("y4m") || config.ENCODER.equals("pipe");
+    }
+
+    static String rawName(String dstName) {
+        return dstName.replace(dstName.
+                substring(dstName.lastIndexOf(".")), ".y4m");
+    }
+
+    /**
+     * audioChannels - 0 records only the video
+     */
+    static FrameSink open(RenderConfig config, String dstName, FFmpegFrameGrabber g, int width, int height,
+                          int audioChannels) throws Exception {
+        FrameSink sink = switch (config.ENCODER) {
+            case "vp9", "vp9-fast" -> new Recorder(config, dstName, g, width, height, audioChannels);
+            case "y4m" -> new Y4m(new FileOutputStream(rawName(dstName)), width, height, g.getFrameRate());
+            case "pipe" -> {
+                if (MainClass.VIDEO_OUT == null)
+                    throw new IllegalArgumentException("ENCODER=pipe only if MainClass.ENCODER is pipe");
+                yield new Y4m(MainClass.VIDEO_OUT, width, height, g.getFrameRate());
+            }
+            default -> throw new IllegalArgumentException("unknown ENCODER " + config.ENCODER);
+        };
+        return new Async(sink);
+    }
+
+    final class Recorder implements FrameSink {
+        private final FFmpegFrameRecorder recorder;
+
+        Recorder(RenderConfig config, String dstName, FFmpegFrameGrabber g, int width, int height,
+                 int audioChannels) throws Exception {
+            boolean fast = config.ENCODER.equals("vp9-fast");
+            int threads = config.ENCODER_THREADS > 0 ? config.ENCODER_THREADS : Runtime.getRuntime().availableProcessors();
+            int speed = config.ENCODER_SPEED >= 0 ? config.ENCODER_SPEED : fast ? 8 : 1;
+            String deadline = !config.ENCODER_DEADLINE.isEmpty() ? config.ENCODER_DEADLINE : fast ? "realtime" : "good";
+            // libvpx uses a tile column per thread at most, log2, and a tile is at least 256 pixels wide
+            int tileColumns = Math.max(0, Math.min(31 - Integer.numberOfLeadingZeros(threads),
+                    31 - Integer.numberOfLeadingZeros(Math.max(1, width / 256))));
+
+            recorder = new FFmpegFrameRecorder(dstName, width, height, audioChannels);
+            recorder.setFrameRate(g.getFrameRate());
+            recorder.setSampleRate(48000);
+            recorder.setAudioMetadata(g.getAudioMetadata());
+            recorder.setVideoMetadata(g.getVideoMetadata());
+            recorder.setVideoCodec(AV_CODEC_ID_VP9);
+            recorder.setVideoBitrate(2500000);
+            recorder.setAudioBitrate(128000);
+            recorder.setVideoOption("threads", String.valueOf(threads));
+            recorder.setVideoOption("row-mt", "1");
+            recorder.setVideoOption("tile-columns", String.valueOf(tileColumns));
+            recorder.setVideoOption("cpu-used", String.valueOf(speed));
+            recorder.setVideoOption("deadline", deadline);
+            recorder.setFormat("webm");
+            recorder.start();
+        }
+
+        @Override
+        public void record(Frame frame, long timestamp) throws Exception {
+            recorder.setTimestamp(timestamp);
+            recorder.record(frame);
+        }
+
+        @Override
+        public void close() throws IOException {
+            recorder.close();
+        }
+    }
+
+    /**
+     * YUV4MPEG2 4:2:0, the odd last column and row are repeated to make the size even. the audio
+     * frames are skipped
+     */
+    final class Y4m implements FrameSink {
+        private final OutputStream out;
+        private final OpenCVFrameConverter.ToOrgOpenCvCoreMat converter = new OpenCVFrameConverter.ToOrgOpenCvCoreMat();
+        private final Mat bgr = new Mat(), even = new Mat(), yuv = new Mat();
+        private final int width, height;
+        private byte[] pixels = new byte[0];
+
+        Y4m(OutputStream out, int width, int height, double frameRate) throws IOException {
+            this.out = new BufferedOutputStream(out, 1 << 16);
+            this.width = width + width % 2;
+            this.height = height + height % 2;
+            int rate = (int) Math.round(frameRate * 1000);
+            this.out.write(String.format("YUV4MPEG2 W%d H%d F%d:1000 Ip A1:1 C420jpeg\n", this.width, this.height, rate)
+                    .getBytes(StandardCharsets.US_ASCII));
+        }
+
+        @Override
+        public void record(Frame frame, long timestamp) throws Exception {
+            if (frame.image == null) return;
+            Mat image = converter.convert(frame);
+            if (image.channels() == 1) {
+                Imgproc.cvtColor(image, bgr, Imgproc.COLOR_GRAY2BGR);
+                image = bgr;
+            }
+            if (image.cols() != width || image.rows() != height) {
+                Core.copyMakeBorder(image, even, 0, height - image.rows(), 0, width - image.cols(), Core.BORDER_REPLICATE);
+                image = even;
+            }
+            Imgproc.cvtColor(image, yuv, Imgproc.COLOR_BGR2YUV_I420);
+            int size = (int) yuv.total();
+            if (pixels.length != size) pixels = new byte[size];
+            yuv.get(0, 0, pixels);
+            out.write("FRAME\n".getBytes(StandardCharsets.US_ASCII));
+            out.write(pixels);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                out.close();
+            } finally {
+                bgr.release();
+                even.release();
+                yuv.release();
+            }
+        }
+    }
+
+    /**
+     * records on its own thread: the frames are copied to a queue of QUEUE_FRAMES, the render
+     * waits only when it's full. an error of the encoder is thrown by the next record or close
+     */
+    final class Async implements FrameSink {
+        private record Entry(Frame frame, long timestamp) {
+        }
+
+        private static final Entry END = new Entry(null, 0);
+
+        private final FrameSink sink;
+        private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUE_FRAMES);
+        private final Thread thread;
+        private volatile Exception error;
+
+        Async(FrameSink sink) {
+            this.sink = sink;
+            thread = new Thread(this::encode, "encoder");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void encode() {
+            try {
+                Entry entry;
+                while ((entry = queue.take()) != END) sink.record(entry.frame, entry.timestamp);
+            } catch (Exception e) {
+                error = e;
+                // the render mustn't wait for a queue nobody takes from
+                queue.clear();
+                while (!queue.offer(END)) queue.clear();
+            }
+        }
+
+        private void check() throws Exception {
+            if (error != null) throw error;
+        }
+
+        @Override
+        public void record(Frame frame, long timestamp) throws Exception {
+            check();
+            queue.put(new Entry(frame.clone(), timestamp));
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (thread.isAlive()) queue.put(END);
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                sink.close();
+            }
+            if (error != null) throw new IOException("the encoder failed", error);
+        }
+    }
+}
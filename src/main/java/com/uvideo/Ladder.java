@@ -0,0 +1,231 @@
+package com.uvideo;
+
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.Java2DFrameConverter;
+import org.bytedeco.javacv.OpenCVFrameConverter;
+import org.opencv.core.Mat;
+import org.opencv.video.BackgroundSubtractor;
+import org.opencv.video.Video;
+
+import javax.imageio.ImageIO;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.opencv.core.CvType.CV_8UC1;
+
+public class Ladder {
+
+    /**
+     * Renders a video at all HEIGHTS, e.g. 360,480,720, in one run. Every frame is decoded once,
+     * scaled by the decoder to the largest height and resized to the others, and every rendition
+     * is thresholded and rendered with its own HEIGHT, one after another, so all of them share the
+     * line workers and the characters. Every rendition has its own video <file>_converted_<height>p.webm,
+     * text and frames named <output>-<height>p, and its own BACK_SUB.
+     * The characters are shared too: removeNull at frame 500 counts the uses of all renditions.
+     * FLUCTUATIONS_HEIGHT, CHECKPOINT_FRAMES and ENCODER=pipe aren't supported.
+     */
+
+    private Ladder() {
+    }
+
+    /**
+     * an output of one decode, see Variants too
+     */
+    static final class Rendition {
+        final RenderConfig config;
+        final SymbolSet symbolSet;
+        final int width, height;
+        final String name, textName, debugName, dstName, videoName;
+        BackgroundSubtractor backSub;
+        Mat fgMask;
+        FrameSink sink;
+        TextArchive.Writer archive;
+
+        Rendition(RenderConfig config, SymbolSet symbolSet, int width, int height, String name, String dstName,
+                  String videoName) {
+            this.config = config;
+            this.symbolSet = symbolSet;
+            this.width = width;
+            this.height = height;
+            this.name = name;
+            this.textName = name + "-text";
+            this.debugName = name + "-";
+            this.dstName = dstName;
+            this.videoName = videoName;
+        }
+    }
+
+    /**
+     * the heights from the largest
+     */
+    static int[] heights(String heights) {
+        return Arrays.stream(heights.split(","))
+                .map(String::trim)
+                .filter(h -> !h.isEmpty())
+                .mapToInt(Integer::parseInt)
+                .map(h -> -h)
+                .sorted()
+                .distinct()
+                .map(h -> -h)
+                .toArray();
+    }
+
+    public static String renditionName(String dstName, int height) {
+        return dstName.replace(dstName.
+                substring(dstName.lastIndexOf(".")), String.format("_%dp.webm", height));
+    }
+
+    public static int convert(String fileName, String dstName, String outputName, RenderConfig config,
+                              SymbolSet symbolSet, MainClass.Progress progress) throws Exception {
+        int[] heights = heights(config.HEIGHTS);
+        if (heights.length == 0)
+            throw new IllegalArgumentException("no HEIGHTS " + config.HEIGHTS);
+        if (heights[heights.length - 1] < symbolSet.getHeight() + config.LINE_SPACING)
+            throw new IllegalArgumentException("HEIGHTS " + config.HEIGHTS + " lower than a line");
+        if (config.FLUCTUATIONS_HEIGHT != 0. || config.CHECKPOINT_FRAMES > 0 || config.ENCODER.equals("pipe"))
+            throw new IllegalArgumentException("HEIGHTS with FLUCTUATIONS_HEIGHT, CHECKPOINT_FRAMES or ENCODER=pipe");
+        String inputName = fileName.substring(fileName.lastIndexOf("\\") + 1);
+        int createdVFrNumber = 0;
+
+        try (FFmpegFrameGrabber g = new FFmpegFrameGrabber(fileName)) {
+            if (config.FRAMERATE > 0) g.setFrameRate(config.FRAMERATE);
+            g.start();
+            final int sourceWidth = g.getImageWidth(), sourceHeight = g.getImageHeight();
+            // decoded at the largest height, the others are resized from it
+            g.setImageWidth((int) ((double) heights[0] / sourceHeight * sourceWidth));
+            g.setImageHeight(heights[0]);
+            final int totalCreateVFrames = g.getLengthInVideoFrames() - config.SKIPPED_FRAMES;
+            final String audio = MainClass.audio(g, config);
+            final boolean copyAudio = audio.equals("copy"), encodeAudio = audio.equals("encode");
+            final int audioChannels = encodeAudio ? g.getAudioChannels() : 0;
+
+            List<Rendition> renditions = new ArrayList<>(heights.length);
+            try {
+                for (int height : heights) {
+                    RenderConfig c = config.clone();
+                    c.HEIGHT = height;
+                    String dst = renditionName(dstName, height);
+                    Rendition r = new Rendition(c, symbolSet, (int) ((double) height / sourceHeight * sourceWidth), height,
+                            (outputName != null ? outputName : "frame") + "-" + height + "p",
+                            dst, copyAudio ? MainClass.videoName(dst) : dst);
+                    if (config.OUTPUT_TEXT && config.TEXT_ARCHIVE && symbolSet.getCharacters().haveChars())
+                        r.archive = new TextArchive.Writer(TextArchive.archiveName(dst), config.TEXT_KEYFRAMES);
+                    if (config.BACK_SUB) {
+                        r.fgMask = new Mat(r.height, r.width, CV_8UC1);
+                        r.backSub = Video.createBackgroundSubtractorKNN(1, 50, false);
+                    }
+                    renditions.add(r);
+                }
+
+                Java2DFrameConverter java2dFrameConverter = new Java2DFrameConverter();
+                OpenCVFrameConverter.ToOrgOpenCvCoreMat converter = new OpenCVFrameConverter.ToOrgOpenCvCoreMat();
+                // the decoded frame stays valid while the renditions convert theirs
+                OpenCVFrameConverter.ToOrgOpenCvCoreMat decoder = new OpenCVFrameConverter.ToOrgOpenCvCoreMat();
+                Frame fr;
+                int vFrNumber = 0;
+                long startTimeMillis = System.currentTimeMillis(), timestamp;
+
+                if (config.SKIPPED_FRAMES > 0) {
+                    g.setVideoFrameNumber(config.SKIPPED_FRAMES);
+                    vFrNumber = config.SKIPPED_FRAMES;
+                }
+
+                while ((fr = encodeAudio ? g.grab() : g.grabImage()) != null) {
+                    timestamp = g.getTimestamp();
+
+                    if (fr.image != null) {
+                        vFrNumber++;
+                        if (vFrNumber <= config.SKIPPED_FRAMES) continue;
+                        createdVFrNumber++;
+                        Mat decoded = decoder.convert(fr);
+
+                        for (Rendition r : renditions) {
+                            Mat image = decoded.rows() == r.height && decoded.cols() == r.width
+                                    ? decoded : MainClass.resize(decoded, r.width, r.height);
+                            MainClass.RenderedFrame result = MainClass.renderImage(r.config, symbolSet, image,
+                                    r.backSub, r.fgMask, vFrNumber, 0, 0, r.debugName, r.textName,
+                                    java2dFrameConverter, converter);
+                            output(r, result, vFrNumber, timestamp, g, audioChannels, java2dFrameConverter, converter);
+                        }
+
+                        System.out.printf("%s-%03d%n", renditions.getFirst().name, vFrNumber);
+                        if (createdVFrNumber == 500 && !config.DETERMINISTIC) symbolSet.getCharacters().removeNull(config.REMOVE_NULL);
+                        if (createdVFrNumber % 500 == 0) symbolSet.outputStatsToFile(inputName);
+
+                        long leftTimeMillis = (System.currentTimeMillis() - startTimeMillis) / createdVFrNumber
+                                * ((config.CREATE_FRAMES > 0 ? config.CREATE_FRAMES : totalCreateVFrames) - createdVFrNumber);
+                        System.out.println(TimeUnit.MILLISECONDS.toMinutes(leftTimeMillis) + " minutes left");
+                        if (progress != null)
+                            progress.frame(createdVFrNumber, config.CREATE_FRAMES > 0 ? config.CREATE_FRAMES : totalCreateVFrames);
+                    } else if (config.OUTPUT_VIDEO) {
+                        // the audio of every rendition, the sinks copy the frame
+                        for (Rendition r : renditions) record(r, fr, timestamp, g, audioChannels);
+                    }
+
+                    if (config.CREATE_FRAMES > 0 && config.CREATE_FRAMES <= createdVFrNumber) break;
+                }
+
+                System.out.println("Runtime: " + TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - startTimeMillis) + "s");
+                System.out.println("Cells: " + symbolSet.getCharacters().getCellStats());
+                finish(renditions, copyAudio, fileName);
+            } finally {
+                close(renditions);
+            }
+            g.stop();
+        }
+        return createdVFrNumber;
+    }
+
+    /**
+     * writes the frame, its fill and text and records it
+     */
+    static void output(Rendition r, MainClass.RenderedFrame result, int vFrNumber, long timestamp,
+                       FFmpegFrameGrabber g, int audioChannels, Java2DFrameConverter java2dFrameConverter,
+                       OpenCVFrameConverter.ToOrgOpenCvCoreMat converter) throws Exception {
+        Frame convFr = converter.convert(result.image);
+        if (r.config.OUTPUT_FRAMES) {
+            ImageIO.write(java2dFrameConverter.getBufferedImage(convFr), "png",
+                    new File(String.format(MainClass.PATCH + "frames\\%s-%03d.png", r.name, vFrNumber)));
+            if (r.config.SPLIT_FILL)
+                ImageIO.write(java2dFrameConverter.getBufferedImage(converter.convert(result.fill)), "png",
+                        new File(String.format(MainClass.PATCH + "fill\\%s-%03d.png", r.name, vFrNumber)));
+        }
+        if (r.archive != null) r.archive.append(vFrNumber, result.text);
+        if (r.config.OUTPUT_VIDEO) record(r, convFr, timestamp, g, audioChannels);
+    }
+
+    static void record(Rendition r, Frame fr, long timestamp, FFmpegFrameGrabber g,
+                       int audioChannels) throws Exception {
+        if (r.sink == null)
+            r.sink = FrameSink.open(r.config, r.videoName, g, r.width, r.height, audioChannels);
+        r.sink.record(fr, timestamp);
+    }
+
+    /**
+     * closes the videos and adds the copied audio to them
+     */
+    static void finish(List<Rendition> renditions, boolean copyAudio, String fileName) throws Exception {
+        for (Rendition r : renditions) {
+            if (r.sink != null) {
+                r.sink.close();
+                r.sink = null;
+            }
+            if (copyAudio && new File(r.videoName).exists()) {
+                AudioMux.mux(r.videoName, fileName, r.dstName);
+                new File(r.videoName).delete();
+            }
+        }
+    }
+
+    static void close(List<Rendition> renditions) throws IOException {
+        for (Rendition r : renditions) {
+            if (r.sink != null) r.sink.close();
+            if (r.archive != null) r.archive.close();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.uvideo;
+
+import org.bytedeco.javacv.FFmpegLogCallback;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class LineAllocations {
+
+    /**
+     * Renders the same frames twice and prints how much the line workers allocated in the second
+     * render, to check that placing and comparing the symbols doesn't allocate. The first render
+     * loads the symbols and grows the buffers of the workers.
+     * LineAllocations <file> <first>[-<last>] [NAME=value ...]
+     * lines - the number of lines of the frames, cells - the characters of their text, only with chars.txt.
+     * The bytes are counted by ThreadMXBean for the threads named line-, the decoding and the
+     * thresholds on the main thread aren't counted. FORK_CANDIDATES=false leaves out its tasks.
+     */
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("usage: LineAllocations <file> <first>[-<last>] [NAME=value ...]");
+            return;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        try (Preview preview = new Preview(MainClass.resolveInput(args[0]))) {
+            int[] range = Preview.range(args[1]);
+            RenderConfig config = new RenderConfig()
+                    .parse(String.join(" ", Arrays.copyOfRange(args, 2, args.length)));
+            preview.render(range[0], range[1], config);
+
+            Map<Long, Long> before = allocated(threads);
+            List<MainClass.RenderedFrame> frames = preview.render(range[0], range[1], config);
+            Map<Long, Long> after = allocated(threads);
+            long bytes = 0;
+            for (Map.Entry<Long, Long> thread : after.entrySet())
+                bytes += thread.getValue() - before.getOrDefault(thread.getKey(), 0L);
+
+            long lines = 0, cells = 0;
+            for (MainClass.RenderedFrame frame : frames)
+                if (frame.text != null) {
+                    lines += frame.text.length;
+                    for (String line : frame.text) cells += line.codePointCount(0, line.length());
+                }
+            System.out.printf("frames=%d lines=%d cells=%d allocated=%d bytes%n", frames.size(), lines, cells, bytes);
+            if (lines != 0)
+                System.out.printf("per line=%.1f bytes per cell=%.2f bytes%n", (double) bytes / lines,
+                        cells == 0 ? 0. : (double) bytes / cells);
+        } catch (Exception e) {
+            e.printStackTrace();
+            FFmpegLogCallback.set();
+        }
+    }
+
+    /**
+     * the bytes allocated by the line workers so far, by thread id
+     */
+    private static Map<Long, Long> allocated(com.sun.management.ThreadMXBean threads) {
+        Map<Long, Long> allocated = new HashMap<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet())
+            if (thread.getName().startsWith("line-"))
+                allocated.put(thread.threadId(), threads.getThreadAllocatedBytes(thread.threadId()));
+        return allocated;
+    }
+}
@@ -1,24 +1,19 @@
 package com.uvideo;
 
 import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
 import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Stream;
 
 import lombok.extern.slf4j.Slf4j;
-import net.coobird.thumbnailator.Thumbnails;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
 import org.bytedeco.javacpp.Loader;
 import org.bytedeco.javacv.*;
 
@@ -33,8 +28,8 @@ import org.opencv.video.Video;
 
 import javax.imageio.ImageIO;
 
-import static com.uvideo.ProcessPixelLine.DIFF;
-import static org.bytedeco.ffmpeg.global.avcodec.AV_CODEC_ID_VP9;
+import static org.bytedeco.ffmpeg.global.avcodec.AVDISCARD_ALL;
+import static org.bytedeco.ffmpeg.global.avutil.AVMEDIA_TYPE_AUDIO;
 import static org.opencv.core.CvType.*;
 import static org.opencv.imgproc.Imgproc.*;
 
@@ -45,6 +40,10 @@ public class MainClass {
     /**
      * all distances are specified in pixels
      * any colors are represented as single-channel gray images 0..255
+     * HEIGHTS - e.g. 360,480,720, renders the video at all these heights in one run instead of HEIGHT,
+     * the source is decoded once, see Ladder. "" only HEIGHT.
+     * VARIANTS - e.g. SYMBOLS_FOLDER=MS_Gothic.ttf_14_00,DIFF=20|DIFF=30, renders the video with every
+     * variant of the settings in one run, the source is decoded and thresholded once, see Variants.
      * FLUCTUATIONS_HEIGHT - percentage of deviation from the height when building
      * a symbolic image. the text output will be different, but the output images
      * will be fixed size
@@ -67,48 +66,96 @@ public class MainClass {
      * renaming results in incorrect operation.
      * INPUT_FILE_NAME - name of the file in the input&output directory. can be passed
      * as an argument to MainClass, with any full path.
+     * DETERMINISTIC - every frame depends only on its number from the start of the file and
+     * the settings, not on the previous frames: the unused characters are not removed at
+     * frame 500, the characters removed by other jobs are still used and BACK_SUB is not allowed.
+     * needed to render parts of a file separately.
+     * REMOVE_NULL - the characters used n times or less by the frame 500 are not used further, -1 never.
+     * a set pruned once by SymbolProfiler doesn't need it.
+     * STRIP_PIXELS - still images with more pixels are rendered in strips and written as a stream,
+     * the whole image is never in memory. 0 never. see StripRenderer.
+     * SKIPPED_FRAMES - seeks to the frame without decoding the skipped ones, their audio is not recorded.
+     * AUDIO - copy: the audio packets of the source are copied to the output video as they are,
+     * only the video is decoded, see AudioMux. audio that webm can't hold is encoded. encode: the
+     * audio is decoded and encoded again. none: the output video has no audio, the audio of the
+     * source isn't even demuxed.
+     * ENCODER - vp9, vp9-fast, y4m or pipe, where the frames of the video go, see FrameSink. with pipe
+     *  the standard output is kept for the video from the start, everything else printed or logged
+     *  goes to the standard error, see VIDEO_OUT.
+     * ENCODER_THREADS - the threads of the VP9 encoder, 0 all processors.
+     * ENCODER_SPEED - cpu-used of VP9, -1 as the ENCODER. ENCODER_DEADLINE - good, best or
+     * realtime, "" as the ENCODER.
+     * CHECKPOINT_FRAMES - saves the state of the render every n frames, 0 never. a render stopped
+     * by a crash continues from the last checkpoint when it's started again with the same settings.
+     * the video is written in parts, which are joined at the end.
+     * TEXT_ARCHIVE - the text of all frames is written to one compressed archive next to the output
+     * video, <file>_converted.utxt, instead of a file per frame in the text folder. see TextArchive.
+     * TEXT_KEYFRAMES - the archive stores the whole text every n frames and on scene cuts, the other
+     * frames only as the changes against the previous frame. 1 - the whole text of every frame.
      */
 
     public  static final String  SYMBOLS_FOLDER =         "MS_Gothic.ttf_14_00";
     private static       String  INPUT_FILE_NAME =        "sample.webm";
-    private static final int     HEIGHT =                 480;
-    private static final double  FLUCTUATIONS_HEIGHT =    0.;
-    private static final int     FRAMERATE =              0; // 0 as source
-    private static final int     CREATE_FRAMES =          0; // 0 all
-    private static final int     SKIPPED_FRAMES =         0;
+            static final int     HEIGHT =                 480;
+            static final String  HEIGHTS =                "";
+            static final String  VARIANTS =               "";
+            static final double  FLUCTUATIONS_HEIGHT =    0.;
+            static final int     FRAMERATE =              0; // 0 as source
+            static final int     CREATE_FRAMES =          0; // 0 all
+            static final int     SKIPPED_FRAMES =         0;
     public  static final int     LINE_SPACING =           0;
     public  static final double  FILL_DEPTH =             100.;
-    private static final boolean BACK_SUB =               false;
+            static final boolean BACK_SUB =               false;
     public  static final boolean BLACK_BACKGROUND =       true;
     public  static final boolean COLORED =                true;
     public  static final boolean FILL_ALIGNMENT =         true;
     public  static final boolean SPLIT_FILL =             false;
     public  static final boolean SPIN =                   true;
-    private static final boolean USE_CANNY =              false;
-    private static final boolean USE_THRESH =             true;
-    private static final boolean USE_2_THRESH =           false;
-    private static final boolean BETTER_THRESH =          false;
+            static final boolean USE_CANNY =              false;
+            static final boolean USE_THRESH =             true;
+            static final boolean USE_2_THRESH =           false;
+            static final boolean BETTER_THRESH =          false;
+            static final boolean DETERMINISTIC =          false;
+            static final int     REMOVE_NULL =            10;
+            static final int     STRIP_PIXELS =           100_000_000;
+            static final String  AUDIO =                  "copy";
+            static final String  ENCODER =                "vp9";
+            static final int     ENCODER_THREADS =        0;
+            static final int     ENCODER_SPEED =          -1;
+            static final String  ENCODER_DEADLINE =       "";
+            static final int     CHECKPOINT_FRAMES =      0;
     public  static final boolean OUTPUT_FRAMES =          true;
-    private static final boolean OUTPUT_VIDEO =           true;
-    private static final boolean OUTPUT_CANNY =           true;
-    private static final boolean OUTPUT_THRESH =          true;
-    private static final boolean OUTPUT_TEXT =            true;
-    private static final boolean OUTPUT_ORIGINAL_FRAMES = false;
-    public  static       int     SYMBOL_HEIGHT; // automatic
+            static final boolean OUTPUT_VIDEO =           true;
+            static final boolean OUTPUT_CANNY =           true;
+            static final boolean OUTPUT_THRESH =          true;
+            static final boolean OUTPUT_TEXT =            true;
+            static final boolean TEXT_ARCHIVE =           false;
+            static final int     TEXT_KEYFRAMES =         100;
+            static final boolean OUTPUT_ORIGINAL_FRAMES = false;
     public  static final String  PATCH;
-    private static final List<File> symbols;
-    private static final List<Integer> codePoints;
+    // the standard output of the process if ENCODER is pipe, nothing else is written to it, see FrameSink
+    static final OutputStream VIDEO_OUT;
     private static final Pair<Integer, Integer> THRESH_COEFFICIENTS;
+    // the lines of all frames are processed by the same workers, even if several files are converted at once.
+    // a fork-join pool, so the idle workers can share the symbols of a line, see FORK_CANDIDATES
+    private static final ForkJoinPool LINE_EXECUTOR = new ForkJoinPool(
+            Math.max(1, Runtime.getRuntime().availableProcessors() - 3), pool -> {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("line-" + thread.getPoolIndex());
+                return thread;
+            }, null, false);
 
     static {
+        // before anything is printed, the logs use System.out too
+        if (ENCODER.equals("pipe")) {
+            VIDEO_OUT = new FileOutputStream(FileDescriptor.out);
+            System.setOut(System.err);
+        } else VIDEO_OUT = null;
         // the first value cannot be even
         THRESH_COEFFICIENTS = new Pair<>(3, 3); // 5, 13
         System.out.println("availableProcessors " + Runtime.getRuntime().availableProcessors());
         PATCH = new File("").getAbsolutePath() + "\\data_set\\";
         File folder = new File(PATCH);
-        if (!folder.exists())
-            throw new RuntimeException("Folder " + folder.getAbsolutePath() + " not found");
-        folder = new File(PATCH + SYMBOLS_FOLDER);
         if (!folder.exists())
             throw new RuntimeException("Folder " + folder.getAbsolutePath() + " not found");
         folder = new File(PATCH + "frames");
@@ -132,47 +179,13 @@ public class MainClass {
         Loader.load(opencv_java.class);
         time = System.currentTimeMillis() - time;
         System.out.println("Loaded in " + TimeUnit.MILLISECONDS.toSeconds(time) + "s");
-        time = System.currentTimeMillis();
-
-        symbols = new ArrayList<>(100);
-        try (Stream<Path> paths = Files.walk(Paths
-                .get(PATCH + SYMBOLS_FOLDER))) {
-            paths
-                    .filter(Files::isRegularFile)
-                    .map(Path::toFile)
-                    .filter(f -> f.getName()
-                            .substring(f.getName()
-                                    .lastIndexOf(".") + 1)
-                            .equals("png"))
-                    .sorted()
-                    .forEach(symbols::add);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        codePoints = new ArrayList<>(symbols.size());
-        try (Scanner sc = new Scanner(new File(PATCH + SYMBOLS_FOLDER + "\\chars.txt"))) {
-            while (sc.hasNext()) {
-                String str = sc.nextLine();
-                if (!str.isEmpty()) codePoints.add(str.codePointAt(str.length() - 1));
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
 
         try {
-            if (codePoints.isEmpty()) log.info("chars.size() == 0");
-            else if (symbols.size() != codePoints.size())
-                throw new IllegalArgumentException("symbols.size() = " + symbols.size()
-                        + " != chars.size() = " + codePoints.size());
-            SYMBOL_HEIGHT = ProcessPixelLine.setSymbols(symbols, codePoints);
+            SymbolSet.get(SYMBOLS_FOLDER, SPIN, FILL_ALIGNMENT);
         } catch (IllegalArgumentException e) {
             e.printStackTrace();
             System.exit(-1);
         }
-
-        time = System.currentTimeMillis() - time;
-        System.out.println("Loaded images " + TimeUnit.MILLISECONDS.toSeconds(time) + "s");
     }
 
     public static String getInputFileName() {
@@ -180,38 +193,59 @@ public class MainClass {
     }
 
     private static void writeLinesToFile(String[] lines, String filename) {
-        if (!codePoints.isEmpty()) {
-            File file = new File(PATCH + "text\\" + filename);
-            try (PrintWriter writer = new PrintWriter(file, StandardCharsets.UTF_8)) {
-                for (var line : lines)
-                    writer.println(line);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        File file = new File(PATCH + "text\\" + filename);
+        try (PrintWriter writer = new PrintWriter(file, StandardCharsets.UTF_8)) {
+            for (var line : lines)
+                writer.println(line);
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
-    private static Pair<Mat, Mat> createUtf8Mat(@NotNull Mat threshImg, Mat rgbImg, Mat grayImg, Mat thresh2Img, int fNumber) {
-        final int numberOfRows = grayImg.rows() / (SYMBOL_HEIGHT + LINE_SPACING);
+    private static RenderedFrame createUtf8Mat(RenderConfig config, SymbolSet symbolSet,
+                                                @NotNull Mat threshImg, Mat rgbImg, Mat grayImg, Mat thresh2Img,
+                                                int fNumber, int firstLine, String textName) {
+        final int symbolHeight = symbolSet.getHeight();
+        final boolean haveChars = symbolSet.getCharacters().haveChars();
+        final int numberOfRows = grayImg.rows() / (symbolHeight + config.LINE_SPACING);
         CountDownLatch cdl = new CountDownLatch(numberOfRows);
-        int nOfThreads = Runtime.getRuntime().availableProcessors() - 3;
-        ArrayList<ProcessLine<Mat>> lines = new ArrayList<>(numberOfRows);
-        ExecutorService executor = Executors.newFixedThreadPool(nOfThreads);
+
+        // the lines are drawn straight into their bands of the images
+        Mat fin = new Mat(
+                threshImg.rows(), threshImg.cols(),
+                config.COLORED ? CV_8UC3: CV_8UC1,
+                config.COLORED ? new Scalar(0., 0., 0.) : new Scalar(0.)
+        );
+        double bckgrColor = config.BLACK_BACKGROUND ? 0. : 255.;
+        Mat fill = config.SPLIT_FILL ? new Mat(
+                threshImg.rows(), threshImg.cols(),
+                config.COLORED ? CV_8UC3: CV_8UC1,
+                config.COLORED ? new Scalar(bckgrColor, bckgrColor, bckgrColor) : new Scalar(bckgrColor)
+        ) : null;
+        String[] textFin = haveChars ? new String[numberOfRows] : null;
 
         // sending the lines for processing
         for (int i = 0; i < numberOfRows; i++) {
-            Mat threshLine = threshImg.submat(new Rect(0,
-                    i * (SYMBOL_HEIGHT + LINE_SPACING), threshImg.cols(), SYMBOL_HEIGHT));
-            Mat grayLine = grayImg.submat(new Rect(0,
-                    i * (SYMBOL_HEIGHT + LINE_SPACING), threshImg.cols(), SYMBOL_HEIGHT));
-            Mat rgbLine = rgbImg.submat(new Rect(0,
-                    i * (SYMBOL_HEIGHT + LINE_SPACING), threshImg.cols(), SYMBOL_HEIGHT));
-            if (thresh2Img != null) {
-                Mat thresh2Line = thresh2Img.submat(new Rect(0,
-                        i * (SYMBOL_HEIGHT + LINE_SPACING), threshImg.cols(), SYMBOL_HEIGHT));
-                lines.add(new ProcessPixelLine(threshLine, rgbLine, grayLine, thresh2Line, cdl));
-            } else lines.add(new ProcessPixelLine(threshLine, rgbLine, grayLine, fNumber, i + 1, cdl));
-            executor.execute(lines.get(i));
+            Rect band = new Rect(0, i * (symbolHeight + config.LINE_SPACING), threshImg.cols(), symbolHeight);
+            Mat threshLine = threshImg.submat(band);
+            Mat grayLine = grayImg.submat(band);
+            Mat rgbLine = rgbImg.submat(band);
+            Mat thresh2Line = thresh2Img != null ? thresh2Img.submat(band) : null;
+            Mat dstLine = fin.submat(band);
+            Mat fillLine = fill != null ? fill.submat(band) : null;
+            final int lineNumber = i;
+            LINE_EXECUTOR.execute(() -> {
+                try {
+                    // the line of this worker, reused for every line it processes
+                    ProcessPixelLine line = ProcessPixelLine.worker().reset(config, symbolSet,
+                            threshLine, rgbLine, grayLine, thresh2Line, dstLine, fillLine, null,
+                            thresh2Line != null ? -1 : fNumber, thresh2Line != null ? -1 : firstLine + lineNumber + 1, false);
+                    line.run();
+                    if (textFin != null) textFin[lineNumber] = line.getTextResult();
+                } finally {
+                    cdl.countDown();
+                }
+            });
         }
 
         try {
@@ -219,52 +253,51 @@ public class MainClass {
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
-        executor.shutdown();
-
-        Mat fin = new Mat(
-                threshImg.rows(), threshImg.cols(),
-                COLORED ? CV_8UC3: CV_8UC1,
-                COLORED ? new Scalar(0., 0., 0.) : new Scalar(0.)
-        );
-        double bckgrColor = BLACK_BACKGROUND ? 0. : 255.;
-        Mat fill = new Mat(
-                threshImg.rows(), threshImg.cols(),
-                COLORED ? CV_8UC3: CV_8UC1,
-                COLORED ? new Scalar(bckgrColor, bckgrColor, bckgrColor) : new Scalar(bckgrColor)
-        );
-        String[] textFin = new String[numberOfRows];
-        for (int i = 0; i < numberOfRows; i++) {
-            Mat resultLine = lines.get(i).getResult();
-            resultLine.copyTo(fin.submat(new Rect(0, i * (SYMBOL_HEIGHT + LINE_SPACING), threshImg.cols(), SYMBOL_HEIGHT)));
-            // creates a notebook effect if the distance between the lines is greater than 2
-            if (!BLACK_BACKGROUND) {
-                new Mat(
-                        LINE_SPACING / 2, threshImg.cols(),
-                        COLORED ? CV_8UC3: CV_8UC1,
-                        COLORED ? new Scalar(255., 255., 255.) : new Scalar(255.)
-                )
-                        .copyTo(
-                        fin.submat(
-                                new Rect(
-                                        0, i * (SYMBOL_HEIGHT + LINE_SPACING) + SYMBOL_HEIGHT,
-                                        threshImg.cols(), LINE_SPACING / 2
-                                )
-                        )
-                );
-            }
-            Mat fillLine = lines.get(i).getFill();
-            fillLine.copyTo(fill.submat(new Rect(0, i * (SYMBOL_HEIGHT + LINE_SPACING), threshImg.cols(), SYMBOL_HEIGHT)));
-            if (!codePoints.isEmpty()) textFin[i] = lines.get(i).getTextResult();
+        // the symbols the lines of the next frame compare first
+        ForkJoinPool.commonPool().execute(symbolSet.getCharacters()::refreshPopular);
+
+        // creates a notebook effect if the distance between the lines is greater than 2
+        if (!config.BLACK_BACKGROUND && config.LINE_SPACING / 2 > 0) {
+            for (int i = 0; i < numberOfRows; i++)
+                fin.submat(new Rect(
+                        0, i * (symbolHeight + config.LINE_SPACING) + symbolHeight,
+                        threshImg.cols(), config.LINE_SPACING / 2
+                )).setTo(config.COLORED ? new Scalar(255., 255., 255.) : new Scalar(255.));
         }
 
-        if (OUTPUT_TEXT)
-            writeLinesToFile(textFin, String.format("%s-%03d.txt", "text", fNumber));
+        if (config.OUTPUT_TEXT && !config.TEXT_ARCHIVE && haveChars)
+            writeLinesToFile(textFin, String.format("%s-%03d.txt", textName, fNumber));
 
-        return new Pair<>(fin, fill);
+        return new RenderedFrame(fin, fill, textFin);
+    }
+
+    /**
+     * INTER_AREA when shrinking, it keeps the thin lines, INTER_CUBIC when enlarging
+     */
+    public static Mat resize(Mat img, int newW, int newH) {
+        Mat dst = new Mat();
+        Imgproc.resize(img, dst, new Size(newW, newH), 0, 0,
+                (long) newW * newH < (long) img.cols() * img.rows() ? INTER_AREA : INTER_CUBIC);
+        return dst;
+    }
+
+    /**
+     * the height of the frame vFrNumber, changes with FLUCTUATIONS_HEIGHT
+     */
+    static int frameHeight(RenderConfig config, int vFrNumber) {
+        if (config.FLUCTUATIONS_HEIGHT == 0.) return config.HEIGHT;
+        int shift = vFrNumber % 72;
+        return (int) (config.HEIGHT + config.HEIGHT / 18. * config.FLUCTUATIONS_HEIGHT * (18. - (shift > 36 ? 72 - shift : shift)));
     }
 
-    public static BufferedImage resize(BufferedImage img, int newW, int newH) throws IOException {
-        return Thumbnails.of(img).forceSize(newW, newH).asBufferedImage();
+    /**
+     * the decoder scales the frame vFrNumber to its FLUCTUATIONS_HEIGHT, so it isn't resized after grabbing.
+     * must be called before the frame is grabbed
+     */
+    static void scaleGrabber(FFmpegFrameGrabber g, RenderConfig config, int sourceWidth, int sourceHeight, int vFrNumber) {
+        int frameHeight = frameHeight(config, vFrNumber);
+        g.setImageWidth((int) ((double) frameHeight / sourceHeight * sourceWidth));
+        g.setImageHeight(frameHeight);
     }
 
     private static void blurFineLines(Mat src, Mat dst) {
@@ -279,50 +312,349 @@ public class MainClass {
         }*/
     }
 
+    /**
+     * a rendered frame: the image, the fill if SPLIT_FILL, otherwise null, and the text lines, null without chars.txt
+     */
+    public static final class RenderedFrame {
+        public final Mat image;
+        public final Mat fill;
+        public final String[] text;
+
+        RenderedFrame(Mat image, Mat fill, String[] text) {
+            this.image = image;
+            this.fill = fill;
+            this.text = text;
+        }
+    }
+
+    /**
+     * renders one grabbed video frame. backSub and fgMask are used if BACK_SUB. the debug images and the
+     * text are written as set by config, the text is also returned
+     */
+    static RenderedFrame renderFrame(RenderConfig config, SymbolSet symbolSet, Frame fr,
+                                     BackgroundSubtractor backSub, Mat fgMask, int vFrNumber,
+                                     String debugName, String textName, Java2DFrameConverter java2dFrameConverter,
+                                     OpenCVFrameConverter.ToOrgOpenCvCoreMat converter) throws IOException {
+        Mat grabbedImage = converter.convert(fr);
+        if (config.FLUCTUATIONS_HEIGHT != 0.) {
+            // usually already scaled by the decoder, see scaleGrabber
+            int frameHeight = frameHeight(config, vFrNumber);
+            //System.out.println("frameHeight: " + frameHeight);
+            if (grabbedImage.rows() != frameHeight)
+                grabbedImage = resize(grabbedImage,
+                        (int) ((double) frameHeight / grabbedImage.rows() * grabbedImage.cols()), frameHeight);
+        }
+        return renderImage(config, symbolSet, grabbedImage, backSub, fgMask, vFrNumber, 0, 0,
+                debugName, textName, java2dFrameConverter, converter);
+    }
+
+    /**
+     * renders a BGR image. pad - the rows above and below the image that are only used by the
+     * thresholds, see StripRenderer, they are cut off before the lines are rendered. firstLine - the
+     * number of the first line of the image
+     */
+    static RenderedFrame renderImage(RenderConfig config, SymbolSet symbolSet, Mat grabbedImage,
+                                     BackgroundSubtractor backSub, Mat fgMask, int vFrNumber, int pad, int firstLine,
+                                     String debugName, String textName, Java2DFrameConverter java2dFrameConverter,
+                                     OpenCVFrameConverter.ToOrgOpenCvCoreMat converter) throws IOException {
+        Thresholds thresholds = threshold(config, grabbedImage, backSub, fgMask, vFrNumber, debugName,
+                java2dFrameConverter, converter);
+        return renderThresholds(config, symbolSet, grabbedImage, thresholds, vFrNumber, pad, firstLine,
+                debugName, textName, java2dFrameConverter, converter);
+    }
+
+    /**
+     * the gray image and the thresholds of a frame, before DIFF is added. they depend only on
+     * thresholdKey, so the renders of other symbols and DIFF can share them, see Variants
+     */
+    static final class Thresholds {
+        final Mat gray, thresh1, thresh2;
+
+        Thresholds(Mat gray, Mat thresh1, Mat thresh2) {
+            this.gray = gray;
+            this.thresh1 = thresh1;
+            this.thresh2 = thresh2;
+        }
+    }
+
+    /**
+     * the settings the thresholds depend on
+     */
+    static String thresholdKey(RenderConfig config) {
+        return config.USE_CANNY + " " + config.USE_THRESH + " " + config.USE_2_THRESH + " "
+                + config.BETTER_THRESH + " " + config.BACK_SUB;
+    }
+
+    static Thresholds threshold(RenderConfig config, Mat grabbedImage, BackgroundSubtractor backSub, Mat fgMask,
+                                int vFrNumber, String debugName, Java2DFrameConverter java2dFrameConverter,
+                                OpenCVFrameConverter.ToOrgOpenCvCoreMat converter) throws IOException {
+        int rows = grabbedImage.rows(), cols = grabbedImage.cols();
+
+        if (config.BACK_SUB) backSub.apply(grabbedImage, fgMask, 0.01);
+
+        Mat gray = new Mat(rows, cols, COLOR_BGR2GRAY);
+        Imgproc.cvtColor(grabbedImage, gray, COLOR_BGR2GRAY);
+
+        Mat thresh1, thresh2 = null;
+        if (config.USE_CANNY) {
+            // https://docs.opencv.org/4.x/da/d5c/tutorial_canny_detector.html
+            thresh1 = new Mat(rows, cols, COLOR_BGR2GRAY);
+            Mat tmp = new Mat(rows, cols, COLOR_BGR2GRAY);
+            /* reduces the number of parts
+            Imgproc.blur(grabbedImage, tmp, new Size(3,3));*/
+            Imgproc.Canny(grabbedImage, thresh1, 100, 200, 3, false);
+            /* increasing the thickness of the lines
+            float[][] maskValues = {{1, 0, 1}, {0, 1, 0}}; // (1,3) - сдвиг по горизонтали, (2,3) - по вертикали. могут быть отрицательными
+            Mat mask = new Mat(2, 3, CV_32FC1);
+            for (int i = 0; i < 2; i++)
+                for (int j = 0; j < 3; j++)
+                    mask.put(i, j, maskValues[i][j]);
+            Mat moveRight = new Mat(rows, cols, COLOR_BGR2GRAY);
+            Imgproc.warpAffine(thresh, moveRight, mask, new Size(cols, rows));
+            Core.bitwise_or(thresh, moveRight, tmp);*/
+            // invert the color of the image
+            Core.bitwise_not(thresh1, tmp);
+            //thresh = tmp;
+            // it seems to be better this way?
+            blurFineLines(tmp, thresh1);
+
+            if (config.OUTPUT_CANNY) {
+                BufferedImage bi = java2dFrameConverter.getBufferedImage(converter.convert(thresh1));
+                ImageIO.write(bi, "png", new File(PATCH + "canny\\" + debugName + "canny-" + vFrNumber + ".png"));
+            }
+        }
+        else if (config.USE_THRESH) {
+            // https://docs.opencv.org/3.4/d7/d4d/tutorial_py_thresholding.html
+            thresh1 = new Mat(rows, cols, COLOR_BGR2GRAY);
+            if (!config.USE_2_THRESH) {
+                Imgproc.adaptiveThreshold(gray, thresh1, 255,
+                        Imgproc.ADAPTIVE_THRESH_GAUSSIAN_C,
+                        Imgproc.THRESH_BINARY, THRESH_COEFFICIENTS.a, THRESH_COEFFICIENTS.b);
+                if (config.BETTER_THRESH) {
+                    for (int i = 1; i < cols - 1; i++)
+                        for (int j = 1; j < rows - 1; j++) {
+                            double c = thresh1.get(j, i)[0];
+                            if (c == 255.) continue;
+                            double l = thresh1.get(j, i - 1)[0];
+                            double r = thresh1.get(j, i + 1)[0];
+                            double u = thresh1.get(j - 1, i)[0];
+                            double d = thresh1.get(j + 1, i)[0];
+                            if (l + r + u + d >= 255. * 3) {
+                                thresh1.put(j, i, 255., 255., 255.);
+                            }
+                        }
+                }
+            } else {
+                Mat temp = new Mat(rows, cols, COLOR_BGR2GRAY);
+                Imgproc.GaussianBlur(gray, temp, new Size(5, 5), 0);
+                Imgproc.threshold(temp, thresh1, 0,
+                        255,
+                        Imgproc.THRESH_BINARY + THRESH_OTSU);
+                thresh2 = new Mat(rows, cols, COLOR_BGR2GRAY);
+                Imgproc.adaptiveThreshold(thresh1, thresh2, 255,
+                        Imgproc.ADAPTIVE_THRESH_GAUSSIAN_C,
+                        Imgproc.THRESH_BINARY, 3, 2);
+                Mat temp2 = thresh1;
+                thresh1 = thresh2;
+                thresh2 = temp2;
+                // it seems to be better this way
+                blurFineLines(thresh1, temp);
+                thresh1 = temp;
+            }
+            if (config.BACK_SUB) {
+                Mat invMask = new Mat();
+                Core.bitwise_not(fgMask, invMask);
+                Mat useMask = new Mat();
+                Core.bitwise_or(invMask, thresh1, useMask);
+                thresh1 = useMask;
+            }
+        }
+        else thresh1 = gray;
+        return new Thresholds(gray, thresh1, thresh2);
+    }
+
+    /**
+     * renders a frame from its thresholds, which aren't changed
+     */
+    static RenderedFrame renderThresholds(RenderConfig config, SymbolSet symbolSet, Mat grabbedImage,
+                                          Thresholds thresholds, int vFrNumber, int pad, int firstLine,
+                                          String debugName, String textName, Java2DFrameConverter java2dFrameConverter,
+                                          OpenCVFrameConverter.ToOrgOpenCvCoreMat converter) throws IOException {
+        int rows = grabbedImage.rows(), cols = grabbedImage.cols();
+        Mat gray = thresholds.gray, thresh1 = thresholds.thresh1, thresh2 = thresholds.thresh2;
+        if (!config.USE_CANNY && config.USE_THRESH) {
+            if (!config.USE_2_THRESH) {
+                // "lighten" the weight of the maximum black pixels, the pixels of BACK_SUB stay white
+                Mat dst = new Mat(rows, cols, thresh1.type());
+                Core.add(new Mat(rows, cols, thresh1.type(), new Scalar(config.DIFF)), thresh1, dst);
+                thresh1 = dst;
+            }
+            if (config.OUTPUT_THRESH) {
+                BufferedImage bi;
+                if (config.USE_2_THRESH) {
+                    bi = java2dFrameConverter.getBufferedImage(converter.convert(thresh2));
+                    ImageIO.write(bi, "png", new File(PATCH + "thresh\\" + debugName + "thresh2-" + vFrNumber + ".png"));
+                }
+                bi = java2dFrameConverter.getBufferedImage(converter.convert(thresh1));
+                ImageIO.write(bi, "png", new File(PATCH + "thresh\\" + debugName + "thresh1-" + vFrNumber + ".png"));
+            }
+        }
+
+        if (pad > 0) {
+            Rect image = new Rect(0, pad, cols, rows - pad * 2);
+            thresh1 = thresh1.submat(image);
+            if (thresh2 != null) thresh2 = thresh2.submat(image);
+            grabbedImage = grabbedImage.submat(image);
+            gray = gray.submat(image);
+        }
+        return createUtf8Mat(config, symbolSet, thresh1, grabbedImage, gray, thresh2, vFrNumber, firstLine, textName);
+    }
+
+    /**
+     * file names without a path are taken from the input&output directory
+     */
+    public static String resolveInput(String name) {
+        return name.contains("\\") ? name : PATCH + "input&output\\" + name;
+    }
+
+    public static String convertedName(String fileName) {
+        return fileName.replace(fileName.
+                substring(fileName.lastIndexOf(".")), "_converted.webm");
+    }
+
+    public static String partName(String dstName, int part) {
+        return dstName.replace(dstName.
+                substring(dstName.lastIndexOf(".")), String.format("_part_%04d.webm", part));
+    }
+
+    public static String videoName(String dstName) {
+        return dstName.replace(dstName.
+                substring(dstName.lastIndexOf(".")), "_video.webm");
+    }
+
+    /**
+     * what is done with the audio of the grabber: copy, encode or none, see AUDIO. the audio that
+     * isn't encoded is dropped by the demuxer, so the grabber passes only the video
+     */
+    static String audio(FFmpegFrameGrabber g, RenderConfig config) {
+        if (!config.AUDIO.equals("copy") && !config.AUDIO.equals("encode") && !config.AUDIO.equals("none"))
+            throw new IllegalArgumentException("unknown AUDIO " + config.AUDIO);
+        // y4m has no audio
+        boolean hasAudio = g.getAudioChannels() > 0 && config.OUTPUT_VIDEO && !FrameSink.isRaw(config);
+        String audio = !hasAudio ? "none" : config.AUDIO;
+        if (audio.equals("copy") && !AudioMux.canCopy(g.getAudioCodec())) {
+            log.warn("the audio codec " + g.getAudioCodecName() + " can't be copied to webm, it's encoded");
+            audio = "encode";
+        }
+        if (!audio.equals("encode")) {
+            AVFormatContext context = g.getFormatContext();
+            for (int i = 0; i < context.nb_streams(); i++)
+                if (context.streams(i).codecpar().codec_type() == AVMEDIA_TYPE_AUDIO)
+                    context.streams(i).discard(AVDISCARD_ALL);
+        }
+        return audio;
+    }
+
+    public interface Progress {
+        void frame(int createdFrames, int totalFrames);
+    }
+
     public static void main(String[] args) {
         String fileName;
         if (args.length > 0) {
-            fileName = args[0].contains("\\") ? args[0] : PATCH + "input&output\\" + args[0];
+            fileName = resolveInput(args[0]);
             INPUT_FILE_NAME = fileName.substring(fileName.lastIndexOf("\\") + 1);
         } else fileName = PATCH + "input&output\\" + INPUT_FILE_NAME;
-        String dstName = fileName.replace(fileName.
-                substring(fileName.lastIndexOf(".")), "_converted.webm");
+
+        try {
+            convert(fileName, null);
+        } catch (Exception e) {
+            e.printStackTrace();
+            FFmpegLogCallback.set();
+        }
+    }
+
+    /**
+     * converts one file and returns the number of created frames. outputName - prefix of the frames,
+     * text and debug images, if null the frames of a video are named "frame" and of an image by the
+     * name of the file. safe to call from several threads, the symbols and the line workers are shared,
+     * the usage of the characters is counted per call, see SymbolSet.
+     */
+    public static int convert(String fileName, String outputName) throws Exception {
+        return convert(fileName, outputName, new RenderConfig(), null);
+    }
+
+    /**
+     * the same with the settings of a job. progress - if not null, is called after every created frame
+     */
+    public static int convert(String fileName, String outputName, RenderConfig config, Progress progress) throws Exception {
+        return convert(fileName, convertedName(fileName), outputName, config, progress);
+    }
+
+    /**
+     * the same with the name of the output video
+     */
+    public static int convert(String fileName, String dstName, String outputName,
+                              RenderConfig config, Progress progress) throws Exception {
+        if (config.DETERMINISTIC && config.BACK_SUB)
+            throw new IllegalArgumentException("BACK_SUB depends on the previous frames, it can't be DETERMINISTIC");
+        SymbolSet symbolSet = SymbolSet.get(config);
+        String inputName = fileName.substring(fileName.lastIndexOf("\\") + 1);
+        int createdVFrNumber = 0;
+        if (StripRenderer.isLarge(fileName, config)) {
+            StripRenderer.render(fileName, outputName, config, symbolSet);
+            return 1;
+        }
+        if (!config.VARIANTS.isEmpty()) return Variants.convert(fileName, dstName, outputName, config, progress);
+        if (!config.HEIGHTS.isEmpty()) return Ladder.convert(fileName, dstName, outputName, config, symbolSet, progress);
 
         try (FFmpegFrameGrabber g = new FFmpegFrameGrabber(fileName)) {
-            if (FRAMERATE > 0) g.setFrameRate(FRAMERATE);
+            if (config.FRAMERATE > 0) g.setFrameRate(config.FRAMERATE);
             g.start();
-            if (HEIGHT >= SYMBOL_HEIGHT + LINE_SPACING) {
-                g.setImageWidth((int) ((double) HEIGHT / g.getImageHeight() * g.getImageWidth()));
-                g.setImageHeight(HEIGHT);
+            final int sourceWidth = g.getImageWidth(), sourceHeight = g.getImageHeight();
+            if (config.HEIGHT >= symbolSet.getHeight() + config.LINE_SPACING) {
+                g.setImageWidth((int) ((double) config.HEIGHT / g.getImageHeight() * g.getImageWidth()));
+                g.setImageHeight(config.HEIGHT);
             }
-            final int totalCreateVFrames = g.getLengthInVideoFrames() - SKIPPED_FRAMES;
-
-            try (FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(dstName, g.getImageWidth(), g.getImageHeight(), g.getAudioChannels())) {
-                if (OUTPUT_VIDEO) {
-                    recorder.setFrameRate(g.getFrameRate());
-                    //recorder.setSampleFormat(g.getSampleFormat());
-                    recorder.setSampleRate(48000);
-                    recorder.setAudioMetadata(g.getAudioMetadata());
-                    recorder.setVideoMetadata(g.getVideoMetadata());
-                    recorder.setVideoCodec(AV_CODEC_ID_VP9);
-                    recorder.setVideoBitrate(2500000);
-                    recorder.setAudioBitrate(128000);
-                    /*HashMap<String, String> options = new HashMap<>();
-                    options.put("codec:v", "libvpx-vp9");
-                    options.put("pix_fmt", "yuv420p");
-                    options.put("vf", "crop=trunc(iw/2)*2:trunc(ih/2)*2");
-                    options.put("b:v", "1500k");
-                    options.put("codec:a", "libopus");
-                    options.put("b:a", "128k");
-                    options.put("ar", "48000");
-                    recorder.setOptions(options);*/
-                    recorder.setFormat("webm");
-                    recorder.start();
+            // the size of the output video, the frames of FLUCTUATIONS_HEIGHT are resized to it
+            final int width = g.getImageWidth(), height = g.getImageHeight();
+            final int totalCreateVFrames = g.getLengthInVideoFrames() - config.SKIPPED_FRAMES;
+
+            final boolean raw = FrameSink.isRaw(config);
+            if (raw && config.CHECKPOINT_FRAMES > 0)
+                throw new IllegalArgumentException("ENCODER=" + config.ENCODER + " can't be written in parts, CHECKPOINT_FRAMES > 0");
+            if (config.OUTPUT_VIDEO && config.ENCODER.equals("pipe") && VIDEO_OUT == null)
+                throw new IllegalArgumentException("ENCODER=pipe only if MainClass.ENCODER is pipe, the standard output has other text");
+            final String audio = audio(g, config);
+            final boolean copyAudio = audio.equals("copy"), encodeAudio = audio.equals("encode");
+            // the video is written without audio first when the audio is copied
+            final String videoName = copyAudio ? videoName(dstName) : dstName;
+            final int audioChannels = encodeAudio ? g.getAudioChannels() : 0;
+
+            final boolean checkpoints = config.CHECKPOINT_FRAMES > 0;
+            final File checkpointFile = new File(dstName + ".checkpoint");
+            final String settings = fileName + " " + config;
+            Checkpoint checkpoint = checkpoints ? Checkpoint.load(checkpointFile) : null;
+            if (checkpoint != null && !checkpoint.settings.equals(settings)) {
+                log.warn("the checkpoint of other settings is ignored: " + checkpoint.settings);
+                checkpoint = null;
+            }
+            List<String> parts = new ArrayList<>();
+            FrameSink recorder = null;
+            TextArchive.Writer archive = null;
+            // the standard output is the video then, the progress of this convert goes to the standard error
+            final PrintStream out = config.OUTPUT_VIDEO && config.ENCODER.equals("pipe") ? System.err : System.out;
+
+            try {
+                if (config.OUTPUT_TEXT && config.TEXT_ARCHIVE && symbolSet.getCharacters().haveChars()) {
+                    File archiveFile = TextArchive.archiveName(dstName);
+                    archive = checkpoint != null
+                            ? TextArchive.Writer.resume(archiveFile, checkpoint.lastFrame, config.TEXT_KEYFRAMES)
+                            : new TextArchive.Writer(archiveFile, config.TEXT_KEYFRAMES);
                 }
-
-                BackgroundSubtractor backSub;
-                Mat fgMask;
-                if (BACK_SUB) {
+                BackgroundSubtractor backSub = null;
+                Mat fgMask = null;
+                if (config.BACK_SUB) {
                     fgMask = new Mat(g.getImageHeight(), g.getImageWidth(), CV_8UC1);
                     backSub = Video.createBackgroundSubtractorKNN(1, 50, false);
                     //backSub = Video.createBackgroundSubtractorMOG2(1, 50, false);
@@ -330,182 +662,131 @@ public class MainClass {
 
                 Java2DFrameConverter java2dFrameConverter = new Java2DFrameConverter();
                 OpenCVFrameConverter.ToOrgOpenCvCoreMat converter = new OpenCVFrameConverter.ToOrgOpenCvCoreMat();
+                String name = outputName != null ? outputName
+                        : g.getFormat().matches(".*webm.*|.*mp4.*|.*m4v.*|.*mkv.*") ? "frame" : inputName;
+                String textName = outputName != null ? outputName + "-text" : "text";
+                String debugName = outputName != null ? outputName + "-" : "";
                 Frame fr;
-                int vFrNumber = 0, createdVFrNumber = 0;
+                int vFrNumber = 0;
                 long startTimeMillis = System.currentTimeMillis(), timestamp;
 
-                while ((fr = g.grab()) != null) {
+                if (checkpoint != null) {
+                    // BACK_SUB starts again from the checkpoint, the other state is restored
+                    g.setVideoFrameNumber(checkpoint.lastFrame);
+                    vFrNumber = checkpoint.lastFrame;
+                    createdVFrNumber = checkpoint.createdFrames;
+                    parts.addAll(checkpoint.parts);
+                    symbolSet.getCharacters().restore(checkpoint.used, checkpoint.valid);
+                    out.println("Resumed after frame " + checkpoint.lastFrame);
+                } else if (config.SKIPPED_FRAMES > 0) {
+                    // the frames keep their numbers from the start of the file
+                    g.setVideoFrameNumber(config.SKIPPED_FRAMES);
+                    vFrNumber = config.SKIPPED_FRAMES;
+                }
+                final int resumedVFrNumber = createdVFrNumber;
+                if (config.FLUCTUATIONS_HEIGHT != 0.) scaleGrabber(g, config, sourceWidth, sourceHeight, vFrNumber + 1);
+
+                while ((fr = encodeAudio ? g.grab() : g.grabImage()) != null) {
                     timestamp = fr.timestamp;
 
                     if (fr.image != null) {
                         vFrNumber++;
-                        if (vFrNumber <= SKIPPED_FRAMES) continue;
+                        if (vFrNumber <= config.SKIPPED_FRAMES) continue;
                         createdVFrNumber++;
 
-                        if (OUTPUT_ORIGINAL_FRAMES) {
+                        if (config.OUTPUT_ORIGINAL_FRAMES) {
                             ImageIO.write(java2dFrameConverter.convert(fr), "png",
-                                    new File(String.format(PATCH + "input_frames\\frame-%03d.png", vFrNumber)));
+                                    new File(String.format(PATCH + "input_frames\\%s-%03d.png", name, vFrNumber)));
                         }
 
-                        if (FLUCTUATIONS_HEIGHT != 0.) {
-                            int shift = vFrNumber % 72;
-                            int frameHeight = (int) (HEIGHT + HEIGHT / 18. * FLUCTUATIONS_HEIGHT * (18. - (shift > 36 ? 72 - shift : shift)));
-                            //System.out.println("frameHeight: " + frameHeight);
-                            int frameWidth = (int) ((double) frameHeight / fr.imageHeight * fr.imageWidth);
-                            fr = java2dFrameConverter.convert(resize(java2dFrameConverter.convert(fr), frameWidth, frameHeight));
-                        }
+                        RenderedFrame result = renderFrame(config, symbolSet, fr, backSub, fgMask, vFrNumber,
+                                debugName, textName, java2dFrameConverter, converter);
 
-                        Mat grabbedImage = converter.convert(fr);
-                        int rows = grabbedImage.rows(), cols = grabbedImage.cols();
-
-                        if (BACK_SUB) backSub.apply(grabbedImage, fgMask, 0.01);
-
-                        Mat gray = new Mat(rows, cols, COLOR_BGR2GRAY);
-                        Imgproc.cvtColor(grabbedImage, gray, COLOR_BGR2GRAY);
-
-                        Mat thresh1, thresh2 = null;
-                        if (USE_CANNY) {
-                            // https://docs.opencv.org/4.x/da/d5c/tutorial_canny_detector.html
-                            thresh1 = new Mat(rows, cols, COLOR_BGR2GRAY);
-                            Mat tmp = new Mat(rows, cols, COLOR_BGR2GRAY);
-                            /* reduces the number of parts
-                            Imgproc.blur(grabbedImage, tmp, new Size(3,3));*/
-                            Imgproc.Canny(grabbedImage, thresh1, 100, 200, 3, false);
-                            /* increasing the thickness of the lines
-                            float[][] maskValues = {{1, 0, 1}, {0, 1, 0}}; // (1,3) - сдвиг по горизонтали, (2,3) - по вертикали. могут быть отрицательными
-                            Mat mask = new Mat(2, 3, CV_32FC1);
-                            for (int i = 0; i < 2; i++)
-                                for (int j = 0; j < 3; j++)
-                                    mask.put(i, j, maskValues[i][j]);
-                            Mat moveRight = new Mat(rows, cols, COLOR_BGR2GRAY);
-                            Imgproc.warpAffine(thresh, moveRight, mask, new Size(cols, rows));
-                            Core.bitwise_or(thresh, moveRight, tmp);*/
-                            // invert the color of the image
-                            Core.bitwise_not(thresh1, tmp);
-                            //thresh = tmp;
-                            // it seems to be better this way?
-                            blurFineLines(tmp, thresh1);
-
-                            if (OUTPUT_CANNY) {
-                                BufferedImage bi = java2dFrameConverter.getBufferedImage(converter.convert(thresh1));
-                                ImageIO.write(bi, "png", new File(PATCH + "canny\\canny-" + vFrNumber + ".png"));
-                            }
-                        }
-                        else if (USE_THRESH) {
-                            // https://docs.opencv.org/3.4/d7/d4d/tutorial_py_thresholding.html
-                            thresh1 = new Mat(rows, cols, COLOR_BGR2GRAY);
-                            if (!USE_2_THRESH) {
-                                Imgproc.adaptiveThreshold(gray, thresh1, 255,
-                                        Imgproc.ADAPTIVE_THRESH_GAUSSIAN_C,
-                                        Imgproc.THRESH_BINARY, THRESH_COEFFICIENTS.a, THRESH_COEFFICIENTS.b);
-                                if (BETTER_THRESH) {
-                                    for (int i = 1; i < cols - 1; i++)
-                                        for (int j = 1; j < rows - 1; j++) {
-                                            double c = thresh1.get(j, i)[0];
-                                            if (c == 255.) continue;
-                                            double l = thresh1.get(j, i - 1)[0];
-                                            double r = thresh1.get(j, i + 1)[0];
-                                            double u = thresh1.get(j - 1, i)[0];
-                                            double d = thresh1.get(j + 1, i)[0];
-                                            if (l + r + u + d >= 255. * 3) {
-                                                thresh1.put(j, i, 255., 255., 255.);
-                                            }
-                                        }
-                                }
-                                // "lighten" the weight of the maximum black pixels
-                                Mat dst = new Mat(rows, cols, thresh1.type());
-                                Core.add(new Mat(rows, cols, thresh1.type(), new Scalar(DIFF)), thresh1, dst);
-                                thresh1 = dst;
-                            } else {
-                                Mat temp = new Mat(rows, cols, COLOR_BGR2GRAY);
-                                Imgproc.GaussianBlur(gray, temp, new Size(5, 5), 0);
-                                Imgproc.threshold(temp, thresh1, 0,
-                                        255,
-                                        Imgproc.THRESH_BINARY + THRESH_OTSU);
-                                thresh2 = new Mat(rows, cols, COLOR_BGR2GRAY);
-                                Imgproc.adaptiveThreshold(thresh1, thresh2, 255,
-                                        Imgproc.ADAPTIVE_THRESH_GAUSSIAN_C,
-                                        Imgproc.THRESH_BINARY, 3, 2);
-                                Mat temp2 = thresh1;
-                                thresh1 = thresh2;
-                                thresh2 = temp2;
-                                // it seems to be better this way
-                                blurFineLines(thresh1, temp);
-                                thresh1 = temp;
-                            }
-                            if (BACK_SUB) {
-                                Mat invMask = new Mat();
-                                Core.bitwise_not(fgMask, invMask);
-                                Mat useMask = new Mat();
-                                Core.bitwise_or(invMask, thresh1, useMask);
-                                thresh1 = useMask;
-                            }
-                            if (OUTPUT_THRESH) {
-                                BufferedImage bi;
-                                if (USE_2_THRESH) {
-                                    bi = java2dFrameConverter.getBufferedImage(converter.convert(thresh2));
-                                    ImageIO.write(bi, "png", new File(PATCH + "thresh\\thresh2-" + vFrNumber + ".png"));
-                                }
-                                bi = java2dFrameConverter.getBufferedImage(converter.convert(thresh1));
-                                ImageIO.write(bi, "png", new File(PATCH + "thresh\\thresh1-" + vFrNumber + ".png"));
-                            }
-                        }
-                        else thresh1 = gray;
+                        if (config.FLUCTUATIONS_HEIGHT != 0.) scaleGrabber(g, config, sourceWidth, sourceHeight, vFrNumber + 1);
 
-                        Pair<Mat, Mat> result = createUtf8Mat(thresh1, grabbedImage, gray, thresh2, vFrNumber);
-
-                        Frame convFr = converter.convert(result.a);
-                        if (HEIGHT != convFr.imageHeight) {
+                        Mat image = result.image;
+                        if (config.HEIGHT != image.rows()) {
                             log.info("wtf HEIGHT != convFr.imageHeight");
-                            int frameWidth = (int) ((double) HEIGHT / convFr.imageHeight * convFr.imageWidth);
-                            convFr = java2dFrameConverter.convert(resize(java2dFrameConverter.convert(convFr), frameWidth, HEIGHT));
+                            int frameWidth = (int) ((double) config.HEIGHT / image.rows() * image.cols());
+                            image = resize(image, frameWidth, config.HEIGHT);
                         }
+                        Frame convFr = converter.convert(image);
 
                         BufferedImage bi = java2dFrameConverter.getBufferedImage(convFr);
-                        if (OUTPUT_FRAMES) {
-                            String name = g.getFormat().matches(".*webm.*|.*mp4.*|.*m4v.*|.*mkv.*") ? "frame" : INPUT_FILE_NAME;
+                        if (config.OUTPUT_FRAMES) {
                             ImageIO.write(bi, "png", new File(String.format(PATCH + "frames\\%s-%03d.png", name, vFrNumber)));
-                            if (SPLIT_FILL) {
-                                Frame convFill = converter.convert(result.b);
+                            if (config.SPLIT_FILL) {
+                                Frame convFill = converter.convert(result.fill);
                                 bi = java2dFrameConverter.getBufferedImage(convFill);
                                 ImageIO.write(bi, "png", new File(String.format(PATCH + "fill\\%s-%03d.png", name, vFrNumber)));
                             }
                         }
 
-                        System.out.printf("frame-%03d%n", vFrNumber);
-                        if (createdVFrNumber == 500) ProcessPixelLine.getSymbols().removeNull();
-                        if (createdVFrNumber % 500 == 0) ProcessPixelLine.getSymbols().outputStatsToFile();
+                        if (archive != null) archive.append(vFrNumber, result.text);
+
+                        out.printf("%s-%03d%n", name, vFrNumber);
+                        if (createdVFrNumber == 500 && !config.DETERMINISTIC) symbolSet.getCharacters().removeNull(config.REMOVE_NULL);
+                        if (createdVFrNumber % 500 == 0) symbolSet.outputStatsToFile(inputName);
 
                         fr = convFr;
 
                         long currentTimeMillis = System.currentTimeMillis();
-                        long leftTimeMillis = (currentTimeMillis - startTimeMillis) / createdVFrNumber
-                                * ((CREATE_FRAMES > 0 ? CREATE_FRAMES : totalCreateVFrames) - createdVFrNumber);
-                        System.out.println(TimeUnit.MILLISECONDS.toMinutes(leftTimeMillis) + " minutes left");
+                        long leftTimeMillis = (currentTimeMillis - startTimeMillis) / (createdVFrNumber - resumedVFrNumber)
+                                * ((config.CREATE_FRAMES > 0 ? config.CREATE_FRAMES : totalCreateVFrames) - createdVFrNumber);
+                        out.println(TimeUnit.MILLISECONDS.toMinutes(leftTimeMillis) + " minutes left");
+                        if (progress != null)
+                            progress.frame(createdVFrNumber, config.CREATE_FRAMES > 0 ? config.CREATE_FRAMES : totalCreateVFrames);
                     }
 
                     // if (vFrNumber <= SKIPPED_FRAMES) continue;
 
-                    if (OUTPUT_VIDEO) {
+                    if (config.OUTPUT_VIDEO) {
+                        if (recorder == null)
+                            recorder = FrameSink.open(config, checkpoints ? partName(videoName, parts.size()) : videoName,
+                                    g, width, height, audioChannels);
                         fr.timestamp = timestamp;
-                        recorder.setTimestamp(g.getTimestamp());
-                        recorder.record(fr);
+                        recorder.record(fr, g.getTimestamp());
                     }
 
-                    if (CREATE_FRAMES > 0 && CREATE_FRAMES <= createdVFrNumber) break;
+                    if (checkpoints && fr.image != null && createdVFrNumber % config.CHECKPOINT_FRAMES == 0) {
+                        // the part must be complete before the checkpoint refers to it
+                        if (recorder != null) {
+                            recorder.close();
+                            recorder = null;
+                            parts.add(partName(videoName, parts.size()));
+                        }
+                        new Checkpoint(vFrNumber, createdVFrNumber, parts, symbolSet.getCharacters().getUsed(),
+                                symbolSet.getCharacters().getValid(), settings).save(checkpointFile);
+                    }
+
+                    if (config.CREATE_FRAMES > 0 && config.CREATE_FRAMES <= createdVFrNumber) break;
                 }
 
-                System.out.println("Runtime: " + TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - startTimeMillis) + "s");
-                if (OUTPUT_VIDEO) {
-                    recorder.stop();
-                    recorder.release();
+                out.println("Runtime: " + TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - startTimeMillis) + "s");
+                out.println("Cells: " + symbolSet.getCharacters().getCellStats());
+                if (recorder != null) {
+                    recorder.close();
+                    recorder = null;
+                    if (checkpoints) parts.add(partName(videoName, parts.size()));
+                }
+                if (checkpoints) {
+                    if (!parts.isEmpty()) {
+                        ShardCoordinator.stitchVideo(parts, videoName);
+                        for (String part : parts) new File(part).delete();
+                    }
+                    checkpointFile.delete();
                 }
+                if (copyAudio && new File(videoName).exists()) {
+                    AudioMux.mux(videoName, fileName, dstName);
+                    new File(videoName).delete();
+                }
+            } finally {
+                if (recorder != null) recorder.close();
+                if (archive != null) archive.close();
             }
             g.stop();
-        } catch (Exception e) {
-            e.printStackTrace();
-            FFmpegLogCallback.set();
         }
+        return createdVFrNumber;
     }
 }
 //BufferedImage biMask = java2dFrameConverter2.getBufferedImage(converter.convert(fgMask));
@@ -0,0 +1,71 @@
+package com.uvideo;
+
+import org.bytedeco.javacv.FFmpegLogCallback;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class MatcherComparison {
+
+    /**
+     * Renders the same frames with the exact MATCHER and with another one and prints how far apart
+     * they are and how long each took, to check a faster matcher with the symbols and the settings
+     * of a job before using it.
+     * MatcherComparison <file> <first>[-<last>] <matcher> [NAME=value ...]
+     * cells - the share of the text cells with the same character, only with chars.txt.
+     * pixels - the mean difference of the pixels of the images 0..255.
+     * e.g. sample.webm 1-100 pyramid PYRAMID_CANDIDATES=8 - the speed and the quality of the pyramid
+     * matcher with 8 candidates.
+     * The times include the decoding of the frames, which is the same for both matchers.
+     */
+
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.out.println("usage: MatcherComparison <file> <first>[-<last>] <matcher> [NAME=value ...]");
+            return;
+        }
+        try (Preview preview = new Preview(MainClass.resolveInput(args[0]))) {
+            int[] range = Preview.range(args[1]);
+            RenderConfig config = new RenderConfig()
+                    .parse(String.join(" ", Arrays.copyOfRange(args, 3, args.length)));
+            RenderConfig exact = config.clone().set("MATCHER", "exact");
+            RenderConfig other = config.clone().set("MATCHER", args[2]);
+            // the symbols are loaded before the times are measured
+            SymbolSet.get(exact);
+
+            long time = System.currentTimeMillis();
+            List<MainClass.RenderedFrame> exactFrames = preview.render(range[0], range[1], exact);
+            long exactTime = System.currentTimeMillis() - time;
+            time = System.currentTimeMillis();
+            List<MainClass.RenderedFrame> otherFrames = preview.render(range[0], range[1], other);
+            long otherTime = System.currentTimeMillis() - time;
+
+            long cells = 0, sameCells = 0;
+            double pixels = 0;
+            int frames = Math.min(exactFrames.size(), otherFrames.size());
+            for (int f = 0; f < frames; f++) {
+                MainClass.RenderedFrame a = exactFrames.get(f), b = otherFrames.get(f);
+                Mat image = a.image;
+                pixels += Core.norm(image, b.image, Core.NORM_L1) / (image.total() * image.channels());
+                if (a.text == null || b.text == null) continue;
+                for (int l = 0; l < Math.min(a.text.length, b.text.length); l++) {
+                    int[] x = a.text[l].codePoints().toArray(), y = b.text[l].codePoints().toArray();
+                    cells += Math.max(x.length, y.length);
+                    for (int c = 0; c < Math.min(x.length, y.length); c++)
+                        if (x[c] == y[c]) sameCells++;
+                }
+            }
+
+            System.out.printf("frames=%d exact=%dms %s=%dms (x%.1f)%n", frames, exactTime, args[2], otherTime,
+                    otherTime == 0 ? 0. : (double) exactTime / otherTime);
+            System.out.printf("pixels=%.2f", frames == 0 ? 0. : pixels / frames);
+            if (cells != 0) System.out.printf(" cells=%.2f%% (%d of %d)", sameCells * 100. / cells, sameCells, cells);
+            System.out.println();
+        } catch (Exception e) {
+            e.printStackTrace();
+            FFmpegLogCallback.set();
+        }
+    }
+}
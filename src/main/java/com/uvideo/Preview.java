@@ -0,0 +1,114 @@
+package com.uvideo;
+
+import org.bytedeco.javacv.*;
+
+import javax.imageio.ImageIO;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class Preview implements AutoCloseable {
+
+    /**
+     * Renders one frame or a short range of a file with the given settings, to tune DIFF, FILL_DEPTH,
+     * the thresholds etc. without converting the file. The file stays open and every request seeks
+     * to its first frame, so frame 40000 of a long video is as fast as frame 1.
+     * Preview <file> <first>[-<last>] [NAME=value ...] - writes frames\preview-<n>.png and prints the text.
+     * RenderDaemon has the same command, PREVIEW, which keeps the symbols and the file open between requests.
+     * The frames have their numbers from the start of the file. BACK_SUB is not used, it needs the
+     * previous frames, and the text is returned instead of written.
+     */
+
+    private final FFmpegFrameGrabber g;
+    private final int sourceWidth, sourceHeight;
+    private final Java2DFrameConverter java2dFrameConverter = new Java2DFrameConverter();
+    private final OpenCVFrameConverter.ToOrgOpenCvCoreMat converter = new OpenCVFrameConverter.ToOrgOpenCvCoreMat();
+
+    public Preview(String fileName) throws FrameGrabber.Exception {
+        g = new FFmpegFrameGrabber(fileName);
+        g.start();
+        sourceWidth = g.getImageWidth();
+        sourceHeight = g.getImageHeight();
+    }
+
+    public List<MainClass.RenderedFrame> render(int first, int last, RenderConfig config) throws Exception {
+        return render(first, last, config, SymbolSet.get(config));
+    }
+
+    /**
+     * symbolSet - of the config, e.g. one whose characters are profiled or restored, see SymbolProfiler
+     */
+    public synchronized List<MainClass.RenderedFrame> render(int first, int last, RenderConfig config,
+                                                             SymbolSet symbolSet) throws Exception {
+        if (first < 1 || last < first)
+            throw new IllegalArgumentException("first < 1 || last < first");
+        RenderConfig preview = config.clone();
+        preview.BACK_SUB = false;
+        preview.OUTPUT_TEXT = false;
+        if (preview.HEIGHT >= symbolSet.getHeight() + preview.LINE_SPACING) {
+            g.setImageWidth((int) ((double) preview.HEIGHT / sourceHeight * sourceWidth));
+            g.setImageHeight(preview.HEIGHT);
+        } else {
+            g.setImageWidth(sourceWidth);
+            g.setImageHeight(sourceHeight);
+        }
+        g.setVideoFrameNumber(first - 1);
+
+        List<MainClass.RenderedFrame> frames = new ArrayList<>(last - first + 1);
+        Frame fr;
+        for (int vFrNumber = first; vFrNumber <= last; vFrNumber++) {
+            if (preview.FLUCTUATIONS_HEIGHT != 0.)
+                MainClass.scaleGrabber(g, preview, sourceWidth, sourceHeight, vFrNumber);
+            if ((fr = g.grabImage()) == null) break;
+            frames.add(MainClass.renderFrame(preview, symbolSet, fr, null, null, vFrNumber,
+                    "preview-", "preview-text", java2dFrameConverter, converter));
+        }
+        return frames;
+    }
+
+    /**
+     * writes the image of the frame to frames\preview-<n>.png and returns the file
+     */
+    public synchronized File save(MainClass.RenderedFrame frame, int vFrNumber) throws IOException {
+        File file = new File(String.format(MainClass.PATCH + "frames\\%s-%03d.png", "preview", vFrNumber));
+        ImageIO.write(java2dFrameConverter.getBufferedImage(converter.convert(frame.image)), "png", file);
+        return file;
+    }
+
+    @Override
+    public synchronized void close() throws FrameGrabber.Exception {
+        g.close();
+    }
+
+    /**
+     * <first>[-<last>]
+     */
+    static int[] range(String range) {
+        String[] bounds = range.split("-");
+        int first = Integer.parseInt(bounds[0]);
+        return new int[]{first, bounds.length > 1 ? Integer.parseInt(bounds[1]) : first};
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("usage: Preview <file> <first>[-<last>] [NAME=value ...]");
+            return;
+        }
+        try (Preview preview = new Preview(MainClass.resolveInput(args[0]))) {
+            int[] range = range(args[1]);
+            RenderConfig config = new RenderConfig()
+                    .parse(String.join(" ", Arrays.copyOfRange(args, 2, args.length)));
+            List<MainClass.RenderedFrame> frames = preview.render(range[0], range[1], config);
+            for (int i = 0; i < frames.size(); i++) {
+                System.out.println(preview.save(frames.get(i), range[0] + i));
+                if (frames.get(i).text != null)
+                    for (String line : frames.get(i).text) System.out.println(line);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            FFmpegLogCallback.set();
+        }
+    }
+}
@@ -3,20 +3,20 @@ package com.uvideo;
 import lombok.extern.slf4j.Slf4j;
 import org.jetbrains.annotations.NotNull;
 import org.opencv.core.*;
-import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
 
-import java.io.File;
 import java.util.*;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import static com.uvideo.CharacterSet.*;
-import static com.uvideo.MainClass.*;
 import static org.opencv.core.CvType.CV_8UC1;
 import static org.opencv.core.CvType.CV_8UC3;
-import static org.opencv.imgproc.Imgproc.getRotationMatrix2D;
-import static org.opencv.imgproc.Imgproc.warpAffine;
 
 @Slf4j
 public class ProcessPixelLine implements ProcessLine<Mat> {
@@ -36,6 +36,33 @@ public class ProcessPixelLine implements ProcessLine<Mat> {
      * dont_move flags. the result of the calculation will be the smallest sum of
      * the difference obtained from the 3 shifts-SHS +0 and +SHS, respectively.
      * FILL_SPACING - additional distance between fill characters.
+     * MATCHER - how a symbol is compared with the threshold:
+     * exact - the sum of the differences of the pixels, see compare.
+     * bits - the symbol and the threshold are packed into bits, one long per row, a bit for every
+     * pixel of the symbol darker than 128 and of the threshold darker than the middle of DIFF and 255,
+     * the black of the threshold is DIFF, see MainClass.renderThresholds. the differences are
+     * counted with XOR and bitCount with the same weights as compare. it gives the same result as exact if the threshold and the symbols are
+     * black and white (USE_THRESH) and is an approximation with antialiased symbols. symbols
+     * wider than 64 pixels are compared exactly.
+     * pyramid - the symbols and the threshold downsampled by 2 are compared first, without the
+     * shifts, and only the PYRAMID_CANDIDATES best symbols are compared exactly with multi9Compare.
+     * the more candidates, the closer to exact and the slower.
+     * template - the compares of a symbol at all positions of the line are computed at once by
+     * Imgproc.matchTemplate, the greedy walk of run only looks them up, see ScoreKernels. it gives
+     * the same result as exact, up to the rounding of floats, if the threshold is black and white,
+     * otherwise the threshold is taken as black below the middle of DIFF and 255.
+     * see MatcherComparison.
+     * FORK_CANDIDATES - if the line pool has idle workers, e.g. a large image with few lines, the
+     * symbols of a position are split between them. the parts share the best compare found so far
+     * and stop comparing a symbol as soon as it's worse. the result is the same, equal compares are
+     * resolved by the number of the symbol. works with the exact and bits MATCHER.
+     * <p>
+     * Before the symbols are compared in their order, the last symbols chosen by the worker (RECENT)
+     * and the most used symbols of the set (CharacterSet.getPopular) are compared first. a good
+     * bound is found sooner and the compares of the other symbols stop earlier, see compare. the
+     * result is the same, equal compares are resolved by the number of the symbol.
+     * While the set is profiled (CharacterSet.startProfile), all symbols are compared completely, in
+     * their order and without FORK_CANDIDATES, to measure them.
      * <p>
      * A fill is a character that is added to an image if there is no character representing
      * the outline at that position and the gray image is below the FILL_DEPTH.
@@ -48,226 +75,417 @@ public class ProcessPixelLine implements ProcessLine<Mat> {
      * belong to the same layer. yy corresponds to the order in the layer 01..02..nn. xxx does
      * not directly indicate the range, only correlates the characters with each other, the
      * order is also determined by sorting by the name of the halyard.
-     * fillNumbers.add(n.clone().setIterWithN1N2(numberF, numberL)) - a function that does
-     * not change the character order of the same layer in different frames.
-     * fillNumbers.add(n.clone().setIterWithN1N2V2(numberF, numberL)) - a function that changes
-     * the order in one layer over time.
+     * n.startPix(numberF, numberL) - the start of the line in the layer, does not change the
+     * character order of the same layer in different frames.
+     * n.swapped(numberF).swappedStartPix(numberF, numberL) - changes the order in one layer over time.
      * */
 
     public  static final int DIFF = 115;
     public  static final int SYMBOL_SPACING = 0;
     public  static final int SYMBOL_HORIZONTAL_SHIFT = 1;
     public  static final int FILL_SPACING = 0;
-
-    private static CharacterSet<Mat> symbols;
-    private static List<FillRingList> fillSNumbersStatic;
-    private final int LINE_NUMBER;
-    private final int FRAME_NUMBER;
-    private final List<FillRingList> fillSNumbers;
-    private final Mat thresh1Line, rgbLine, grayLine, thresh2Line;
-    private final Mat dstLine, fillLine;
-    private final StringBuffer dstTextLine;
-    private final CountDownLatch latch;
+    public  static final String MATCHER = "exact";
+    public  static final int PYRAMID_CANDIDATES = 4;
+    public  static final boolean FORK_CANDIDATES = true;
+    // the smallest number of symbols a part of FORK_CANDIDATES compares
+    private static final int FORK_SYMBOLS = 24;
+    // the number of the last chosen symbols compared first
+    private static final int RECENT = 4;
+
+    private RenderConfig config;
+    private CharacterSet<Mat> symbols;
+    private int LINE_NUMBER;
+    private int FRAME_NUMBER;
+    private boolean swap;
+    private List<FillRingList> fillSNumbers;
+    private int[] fillStarts = new int[0];
+    private Mat thresh1Line, rgbLine, grayLine, thresh2Line;
+    private Mat dstLine, fillLine;
+    private boolean haveText;
+    private final StringBuilder dstTextLine = new StringBuilder();
+    private final byte[] pixel = new byte[1];
+    // the sums of the columns of the line as the space compares them, if the space is blank. the
+    // compare of the space at any position is then inkPrefix[pos + cols] - inkPrefix[pos]
+    private boolean blankSpace;
+    private byte[] bandPixels = new byte[0];
+    private int bandChannels;
+    private long[] inkPrefix = new long[0];
+    // the rows of the line packed into bits, as CharacterSet.getInkRows, bitWords longs per row
+    private boolean bitMatch;
+    private int bitWords;
+    private long[] inkBits = new long[0];
+    // the line downsampled by 2 and the best symbols of the coarse compare, see MATCHER
+    private boolean pyramid;
+    private final Mat coarseLine = new Mat();
+    private byte[] coarsePixels = new byte[0];
+    private int[] topIndexes = new int[0];
+    private double[] topScores = new double[0];
+    private int topCount;
+    // the threshold as 0..1 and the compares of the symbols at every position, computed for a
+    // symbol when it's compared first in the line, see ScoreKernels
+    private boolean template;
+    private ScoreKernels kernels;
+    private final Mat binaryLine = new Mat(), scoreMap = new Mat();
+    private float[][] scoreMaps = new float[0][];
+    private boolean[] mapped = new boolean[0];
+    // the sums of the colors of the columns of rgbLine, 3 per column, for the average color of a fill
+    // symbol: colorPrefix[(pos + cols) * 3 + c] - colorPrefix[pos * 3 + c]. summed at the first fill of the line
+    private boolean colorSummed;
+    private byte[] rgbPixels = new byte[0];
+    private long[] colorPrefix = new long[0];
+    // the buffers of addPixSymbol, reused for every symbol
+    private final Mat inverted = new Mat(), colored = new Mat(), colorMask = new Mat(), filled = new Mat();
+    private byte[] glyphPixels = new byte[0], maskPixels = new byte[0];
+    private CountDownLatch latch;
+    // the last chosen symbols of this worker, -1 empty, kept between the lines of the same set, and the
+    // compares of the symbols compared first at the current position
+    private CharacterSet<Mat> recentSymbols;
+    private final int[] recent = new int[RECENT];
+    private int recentNext;
+    private int[] probes = new int[0];
+    private double[] probeScores = new double[0];
+    private int probeCount;
+    private SymbolProfile profile;
+    // a worker can run another line while it waits for the parts of FORK_CANDIDATES
+    private boolean running;
+
+    // every line worker has its own line, reset for each line it processes
+    private static final ThreadLocal<ProcessPixelLine> WORKER_LINE = ThreadLocal.withInitial(ProcessPixelLine::new);
 
     private enum Move {CENTER, LEFT, UP, RIGHT, DOWN}
 
-    public static int setSymbols(List<File> sImages, List<Integer> chars) throws IllegalArgumentException {
-        if (sImages == null || sImages.isEmpty())
-            throw new IllegalArgumentException("sImages == null || sImages.size() == 0");
-
-        List<Integer> flags = new ArrayList<>(sImages.size());
-        for (File sImage : sImages) {
-            String name = sImage.getName();
-            if (name.contains("_false")) {
-                log.info("set flag -1 " + name);
-                flags.add(FLAG_FALSE);
-            } else if (name.contains("_dont_move_x")) {
-                log.info("set flag 1 " + name);
-                flags.add(FLAG_DONT_MOVE_X);
-            } else if (name.matches("\\d{3}_filling_\\d{2}\\D*")) {
-                int number = Integer.parseInt(name.substring(0, 3));
-                log.info("set flag " + (FLAG_FILLING + number) + " " + name);
-                flags.add(FLAG_FILLING + number);
-            } else if (name.contains("_filling")) {
-                log.info("set flag 2 " + name);
-                flags.add(FLAG_FILLING_SOLO);
-            } else if (name.contains("_dont_move")) {
-                log.info("set flag 3 " + name);
-                flags.add(FLAG_DONT_MOVE);
-            } else if (name.contains("_dont_spin")) {
-                log.info("set flag 4 " + name);
-                flags.add(FLAG_DONT_SPIN);
-            } else flags.add(FLAG_DEFAULT);
-        }
-        List<Mat> symbols, tempSymbols = new ArrayList<>(sImages.size());
-        sImages.forEach(i -> tempSymbols.add(Imgcodecs.imread(i.getAbsolutePath(), CV_8UC1)));
-
-        if (SPIN) {
-            symbols = new ArrayList<>(tempSymbols.size() * 3);
-            /*Java2DFrameConverter java2dFrameConverter = new Java2DFrameConverter();
-            OpenCVFrameConverter.ToOrgOpenCvCoreMat converter = new OpenCVFrameConverter.ToOrgOpenCvCoreMat();
-
-            int count = 0;*/
-            for (Mat symbol : tempSymbols) {
-                Mat white = new Mat(symbol.rows(), symbol.cols(), CV_8UC1, new Scalar(255));
-                Mat invSymbol = new Mat(symbol.rows(), symbol.cols(), CV_8UC1);
-                Core.subtract(white, symbol, invSymbol);
-                Mat temp = rotate(invSymbol, 8.);
-                Mat rLeft = new Mat(symbol.rows(), symbol.cols(), CV_8UC1);
-                Core.subtract(white, temp, rLeft);
-                temp = rotate(invSymbol, -8.);
-                Mat rRight = new Mat(symbol.rows(), symbol.cols(), CV_8UC1);
-                Core.subtract(white, temp, rRight);
-                /*try {
-                    BufferedImage bi = java2dFrameConverter.getBufferedImage(converter.convert(rLeft));
-                    ImageIO.write(bi, "png", new File(MainClass.PATCH + "rotated_symbols\\s-" + count + "-l.png"));
-                    bi = java2dFrameConverter.getBufferedImage(converter.convert(rRight));
-                    ImageIO.write(bi, "png", new File(MainClass.PATCH + "rotated_symbols\\s-" + count + "-r.png"));
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }*/
-                symbols.add(symbol);
-                symbols.add(rLeft);
-                symbols.add(rRight);
-                //count++;
-            }
-        } else symbols = tempSymbols;
-
-        ProcessPixelLine.symbols = new CharacterSet<>(Mat.class, symbols, flags, chars);
-
-        fillSNumbersStatic = new ArrayList<>();
-        List<Integer> symbolsFlags = ProcessPixelLine.symbols.getFlags();
-        int currentLayerNumber = -1;
-        for (int i = 0; i < symbolsFlags.size(); i++) {
-            int flag = symbolsFlags.get(i);
-            int sNumber = SPIN ? i * 3 : i;
-            if (flag == FLAG_FILLING_SOLO) fillSNumbersStatic.add(new FillRingList(
-                    new Pair<>(symbols.get(sNumber).cols(), sNumber)));
-            else if (flag / FLAG_FILLING == 1) {
-                int number = flag % FLAG_FILLING;
-                if (currentLayerNumber != number) {
-                    fillSNumbersStatic.add(new FillRingList(new Pair<>(symbols.get(sNumber).cols(), sNumber)));
-                    currentLayerNumber = number;
-                } else fillSNumbersStatic.getLast()
-                        .add(new Pair<>(symbols.get(sNumber).cols(), sNumber));
-            }
+    // the best symbol of a part of FORK_CANDIDATES, equal compares are resolved by the number
+    private record Best(double compare, int number) {
+        Best min(Best other) {
+            return other.compare < compare || other.compare == compare && other.number < number ? other : this;
         }
+    }
 
-        return symbols.getFirst().rows();
+    private ProcessPixelLine() {
     }
 
-    private static Mat rotate(Mat src, double angle) {
-        Mat dst = new Mat(src.rows(), src.cols(), src.type());
-        Point pt = new Point(src.cols() / 2., src.rows() / 2.);
-        Mat r = getRotationMatrix2D(pt, angle, 1.0);
-        warpAffine(src, dst, r, new Size(src.cols(), src.rows()));
-        return dst;
+    private ProcessPixelLine(RenderConfig config, SymbolSet symbolSet,
+                             @NotNull Mat thresh1Line, Mat rgbLine, Mat grayLine, Mat thresh2Line,
+                             CountDownLatch latch, int numberF, int numberL, boolean swap) {
+        reset(config, symbolSet, thresh1Line, rgbLine, grayLine, thresh2Line,
+                band(config, thresh1Line), config.SPLIT_FILL ? band(config, thresh1Line) : null,
+                latch, numberF, numberL, swap);
     }
 
-    public static CharacterSet<Mat> getSymbols() {
-        if (symbols == null)
-            throw new NullPointerException("symbols are null, use setSymbols()");
-        return symbols;
+    public ProcessPixelLine(RenderConfig config, SymbolSet symbolSet, Mat thresh1Line, CountDownLatch latch) {
+        this(config, symbolSet, thresh1Line, null, null, null, latch, -1, -1, false);
     }
 
-    private ProcessPixelLine(@NotNull Mat thresh1Line, Mat rgbLine, Mat grayLine, Mat thresh2Line,
-                             CountDownLatch latch, int numberF, int numberL, boolean swap) {
-        if (symbols == null)
-            throw new NullPointerException("symbols are null, use setSymbols()");
-        if (/*threshLine.type() != CV_8U || */thresh1Line.rows() != MainClass.SYMBOL_HEIGHT || thresh1Line.cols() < 100)
+    public ProcessPixelLine(RenderConfig config, SymbolSet symbolSet,
+                            Mat thresh1Line, Mat rgbLine, Mat grayLine, int numberF, int numberL, CountDownLatch latch) {
+        this(config, symbolSet, thresh1Line, rgbLine, grayLine, null, latch, numberF, numberL, false);
+    }
+
+    public ProcessPixelLine(RenderConfig config, SymbolSet symbolSet,
+                            Mat thresh1Line, Mat rgbLine, Mat grayLine, Mat thresh2Line, CountDownLatch latch) {
+        this(config, symbolSet, thresh1Line, rgbLine, grayLine, thresh2Line, latch, -1, -1, false);
+    }
+
+    private static Mat band(RenderConfig config, Mat thresh1Line) {
+        return new Mat(thresh1Line.rows(), thresh1Line.cols(), config.COLORED ? CV_8UC3: CV_8UC1);
+    }
+
+    /**
+     * the line of the current worker thread. it's valid until the thread processes the next line
+     */
+    static ProcessPixelLine worker() {
+        ProcessPixelLine line = WORKER_LINE.get();
+        return line.running ? new ProcessPixelLine() : line;
+    }
+
+    /**
+     * prepares the line for the next run. dstLine and fillLine - the bands of the output images the
+     * line is drawn into, fillLine is used only if SPLIT_FILL. latch may be null
+     */
+    final ProcessPixelLine reset(RenderConfig config, SymbolSet symbolSet,
+                                 @NotNull Mat thresh1Line, Mat rgbLine, Mat grayLine, Mat thresh2Line,
+                                 @NotNull Mat dstLine, Mat fillLine, CountDownLatch latch,
+                                 int numberF, int numberL, boolean swap) {
+        if (symbolSet == null)
+            throw new NullPointerException("symbolSet == null");
+        if (/*threshLine.type() != CV_8U || */thresh1Line.rows() != symbolSet.getHeight() || thresh1Line.cols() < 100)
             throw new IllegalArgumentException("threshLine.rows() != 14 || threshLine.cols() < 100");
-        if (COLORED && rgbLine == null) {
+        if (config.COLORED && rgbLine == null) {
             throw new IllegalArgumentException("COLORED && rgbLine == null");
         }
-
+        if (config.SPLIT_FILL && fillLine == null)
+            throw new IllegalArgumentException("SPLIT_FILL && fillLine == null");
+
+        this.config = config;
+        symbols = symbolSet.getCharacters();
+        profile = symbols.getProfile();
+        if (recentSymbols != symbols) {
+            recentSymbols = symbols;
+            Arrays.fill(recent, -1);
+        }
         LINE_NUMBER = numberL;
         FRAME_NUMBER = numberF;
         this.thresh1Line = thresh1Line;
         this.rgbLine = rgbLine;
         this.grayLine = grayLine;
         this.thresh2Line = thresh2Line;
-        double bckgrColor = BLACK_BACKGROUND ? 0. : 255.;
-        dstLine = new Mat(
-                thresh1Line.rows(), thresh1Line.cols(),
-                COLORED ? CV_8UC3: CV_8UC1,
-                COLORED ? new Scalar(bckgrColor, bckgrColor, bckgrColor) : new Scalar(bckgrColor)
-        );
-        if (symbols.haveChars()) dstTextLine = new StringBuffer(thresh1Line.cols() / SYMBOL_HEIGHT / 2);
-        else dstTextLine = null;
-        fillLine = new Mat(
-                thresh1Line.rows(), thresh1Line.cols(),
-                COLORED ? CV_8UC3: CV_8UC1,
-                COLORED ? new Scalar(bckgrColor, bckgrColor, bckgrColor) : new Scalar(bckgrColor)
-        );
-
-        fillSNumbers = new ArrayList<>(fillSNumbersStatic.size());
-        for (var n : fillSNumbersStatic) {
-            try {
-                if (swap) fillSNumbers.add(n.clone().setIterWithFLSwap(FRAME_NUMBER, LINE_NUMBER));
-                else fillSNumbers.add(n.clone().setIterWithFL(FRAME_NUMBER, LINE_NUMBER));
-            } catch (CloneNotSupportedException e) {
-                e.printStackTrace();
+        double bckgrColor = config.BLACK_BACKGROUND ? 0. : 255.;
+        Scalar background = config.COLORED ? new Scalar(bckgrColor, bckgrColor, bckgrColor) : new Scalar(bckgrColor);
+        this.dstLine = dstLine;
+        dstLine.setTo(background);
+        this.fillLine = fillLine;
+        if (fillLine != null) fillLine.setTo(background);
+        haveText = symbols.haveChars();
+        dstTextLine.setLength(0);
+
+        // the layers are shared, a line only has its start in each of them
+        this.swap = swap;
+        fillSNumbers = symbolSet.getFills();
+        if (fillStarts.length < fillSNumbers.size()) fillStarts = new int[fillSNumbers.size()];
+        for (int i = 0; i < fillSNumbers.size(); i++)
+            fillStarts[i] = swap ? fillSNumbers.get(i).swapped(FRAME_NUMBER).swappedStartPix(FRAME_NUMBER, LINE_NUMBER)
+                    : fillSNumbers.get(i).startPix(FRAME_NUMBER, LINE_NUMBER);
+        this.latch = latch;
+
+        colorSummed = false;
+        bitMatch = switch (config.MATCHER) {
+            case "exact" -> false;
+            case "bits" -> true;
+            case "pyramid", "template" -> false;
+            default -> throw new IllegalArgumentException("unknown MATCHER " + config.MATCHER);
+        };
+        pyramid = config.MATCHER.equals("pyramid");
+        template = config.MATCHER.equals("template");
+        if ((bitMatch || pyramid || template) && thresh1Line.type() != CV_8UC1)
+            throw new IllegalArgumentException("MATCHER=" + config.MATCHER + " && threshLine.type() != CV_8UC1");
+        if (pyramid) {
+            if (config.PYRAMID_CANDIDATES < 1)
+                throw new IllegalArgumentException("PYRAMID_CANDIDATES < 1");
+            downsample();
+        }
+        if (template) {
+            kernels = symbolSet.getKernels(config.DIFF);
+            // white above the middle of the black, DIFF, and 255
+            Imgproc.threshold(thresh1Line, binaryLine, (config.DIFF + 255) / 2., 1, Imgproc.THRESH_BINARY);
+            binaryLine.convertTo(binaryLine, CvType.CV_32F);
+            if (mapped.length != symbols.size() * 3) {
+                mapped = new boolean[symbols.size() * 3];
+                scoreMaps = new float[symbols.size() * 3][];
             }
+            Arrays.fill(mapped, false);
         }
-        this.latch = latch;
+        blankSpace = symbols.isBlank(0) && thresh1Line.type() == CV_8UC1;
+        readBand();
+        if (blankSpace) sumInk();
+        if (bitMatch) packInk();
+        return this;
     }
 
-    public ProcessPixelLine(Mat thresh1Line, CountDownLatch latch) {
-        this(thresh1Line, null, null, null, latch, -1, -1, false);
+    private void readBand() {
+        bandChannels = thresh1Line.channels();
+        int size = thresh1Line.rows() * thresh1Line.cols() * bandChannels;
+        if (bandPixels.length != size) bandPixels = new byte[size];
+        thresh1Line.get(0, 0, bandPixels);
     }
 
-    public ProcessPixelLine(Mat thresh1Line, Mat rgbLine, Mat grayLine, int numberF, int numberL, CountDownLatch latch) {
-        this(thresh1Line, rgbLine, grayLine, null, latch, numberF, numberL, false);
+    private void sumInk() {
+        int rows = thresh1Line.rows(), cols = thresh1Line.cols();
+        if (inkPrefix.length < cols + 1) inkPrefix = new long[cols + 1];
+        for (int j = 0; j < cols; j++) {
+            long sum = 0;
+            for (int i = 0; i < rows; i++) {
+                // the same as compare with the white symbol, s - t = 255 - t
+                int diff = 255 - (bandPixels[i * cols + j] & 0xFF);
+                if (diff > config.DIFF) sum += diff;
+            }
+            inkPrefix[j + 1] = inkPrefix[j] + sum;
+        }
     }
 
-    public ProcessPixelLine(Mat thresh1Line, Mat rgbLine, Mat grayLine, Mat thresh2Line, CountDownLatch latch) {
-        this(thresh1Line, rgbLine, grayLine, thresh2Line, latch, -1, -1, false);
+    private void downsample() {
+        Imgproc.resize(thresh1Line, coarseLine, new Size(thresh1Line.cols() / 2, thresh1Line.rows() / 2), 0, 0, Imgproc.INTER_AREA);
+        if (coarsePixels.length != coarseLine.total()) coarsePixels = new byte[(int) coarseLine.total()];
+        coarseLine.get(0, 0, coarsePixels);
+        if (topIndexes.length != config.PYRAMID_CANDIDATES) {
+            topIndexes = new int[config.PYRAMID_CANDIDATES];
+            topScores = new double[config.PYRAMID_CANDIDATES];
+        }
     }
 
-    private double compare(int pos, Mat symbol, double colsCoefficient, double coefficientCorrection, Move moveH) {
+    /**
+     * compare of the downsampled symbol and line, without the shifts
+     */
+    private double coarseCompare(int pos, int index) {
+        byte[] symbol = symbols.getCoarse(index);
+        int cols = symbols.getCoarseCols(index), rows = symbol.length / cols, lineCols = coarseLine.cols();
+        int coarsePos = pos / 2;
+        if (coarsePos + cols > lineCols) return Double.MAX_VALUE;
         double diffsSSum = 0, diffsTSum = 0;
-        for (int i = 0; i < symbol.rows(); i++)
-            for (int j = 0; j < symbol.cols(); j++) {
-                double s, t, diff;
-                if (moveH == Move.CENTER) s = symbol.get(i, j)[0];
-                else if (moveH == Move.UP && i != 0) s = symbol.get(i - 1, j)[0];
-                else if (moveH == Move.DOWN && i != symbol.rows() - 1) s = symbol.get(i + 1, j)[0];
-                else s = 255.;
-                t = thresh1Line.get(i, pos + j)[0];
+        for (int i = 0; i < rows; i++)
+            for (int j = 0; j < cols; j++) {
+                int diff = (symbol[i * cols + j] & 0xFF) - (coarsePixels[i * lineCols + coarsePos + j] & 0xFF);
+                if (Math.abs(diff) <= config.DIFF) continue;
+                if (diff < 0) diffsSSum -= diff;
+                else diffsTSum += diff;
+            }
+
+        return (diffsSSum / symbols.getCorrection(index) + diffsTSum) / symbols.getCoefficient(index);
+    }
+
+    /**
+     * keeps the PYRAMID_CANDIDATES symbols with the smallest coarse compare, in ascending order
+     */
+    private void keepCandidate(int index, double score) {
+        int k = topCount;
+        if (k == topIndexes.length) {
+            if (score >= topScores[k - 1]) return;
+            k--;
+        } else topCount++;
+        while (k > 0 && topScores[k - 1] > score) {
+            topScores[k] = topScores[k - 1];
+            topIndexes[k] = topIndexes[k - 1];
+            k--;
+        }
+        topScores[k] = score;
+        topIndexes[k] = index;
+    }
+
+    /**
+     * the compare of the symbol with the shift move at the position pos, from its score map
+     */
+    private double templateCompare(int pos, int index, Move moveH) {
+        int move = switch (moveH) {
+            case UP -> ScoreKernels.UP;
+            case DOWN -> ScoreKernels.DOWN;
+            default -> ScoreKernels.CENTER;
+        };
+        int at = index * 3 + move;
+        if (!mapped[at]) {
+            Imgproc.matchTemplate(binaryLine, kernels.kernel(index, move), scoreMap, Imgproc.TM_CCORR);
+            if (scoreMaps[at] == null || scoreMaps[at].length != scoreMap.cols())
+                scoreMaps[at] = new float[scoreMap.cols()];
+            scoreMap.get(0, 0, scoreMaps[at]);
+            mapped[at] = true;
+        }
+        double diff = kernels.constant(index, move) + scoreMaps[at][pos];
+        // the float sums are not exact, a perfect match has to stay 0
+        return diff < 1e-3 ? 0 : diff;
+    }
+
+    private void sumColors() {
+        int rows = rgbLine.rows(), cols = rgbLine.cols();
+        if (rgbPixels.length != rows * cols * 3) rgbPixels = new byte[rows * cols * 3];
+        if (colorPrefix.length < (cols + 1) * 3) colorPrefix = new long[(cols + 1) * 3];
+        rgbLine.get(0, 0, rgbPixels);
+        for (int j = 0; j < cols; j++)
+            for (int c = 0; c < 3; c++) {
+                long sum = 0;
+                for (int i = 0; i < rows; i++) sum += rgbPixels[(i * cols + j) * 3 + c] & 0xFF;
+                colorPrefix[(j + 1) * 3 + c] = colorPrefix[j * 3 + c] + sum;
+            }
+        colorSummed = true;
+    }
+
+    private void packInk() {
+        int rows = thresh1Line.rows(), cols = thresh1Line.cols();
+        // one more long, so a window of 64 bits can always read two longs
+        bitWords = (cols + Long.SIZE - 1) / Long.SIZE + 1;
+        if (inkBits.length < rows * bitWords) inkBits = new long[rows * bitWords];
+        Arrays.fill(inkBits, 0, rows * bitWords, 0L);
+        for (int i = 0; i < rows; i++)
+            for (int j = 0; j < cols; j++)
+                if (2 * (bandPixels[i * cols + j] & 0xFF) < config.DIFF + 255) inkBits[i * bitWords + (j >>> 6)] |= 1L << j;
+    }
+
+    /**
+     * the same as compare for black and white pixels, the black of the threshold is DIFF: a pixel that
+     * is black in the symbol and white in the threshold adds 255 to diffsSSum, the opposite adds
+     * 255 - DIFF to diffsTSum, nothing if it isn't greater than DIFF
+     */
+    private double bitCompare(int pos, long[] symbol, int cols, double colsCoefficient, double coefficientCorrection, Move moveH) {
+        long mask = cols == Long.SIZE ? -1L : (1L << cols) - 1;
+        int word = pos >>> 6, bit = pos & 63;
+        int diffsS = 0, diffsT = 0;
+        for (int i = 0; i < symbol.length; i++) {
+            long s;
+            if (moveH == Move.CENTER) s = symbol[i];
+            else if (moveH == Move.UP && i != 0) s = symbol[i - 1];
+            else if (moveH == Move.DOWN && i != symbol.length - 1) s = symbol[i + 1];
+            else s = 0L;
+            int at = i * bitWords + word;
+            long t = inkBits[at] >>> bit;
+            if (bit != 0) t |= inkBits[at + 1] << (Long.SIZE - bit);
+            t &= mask;
+            diffsS += Long.bitCount(s & ~t);
+            diffsT += Long.bitCount(t & ~s);
+        }
+
+        int inkDiff = 255 - config.DIFF > config.DIFF ? 255 - config.DIFF : 0;
+        return (255. * diffsS / coefficientCorrection + (double) inkDiff * diffsT) / colsCoefficient;
+    }
+
+    /**
+     * bound - the compare stops as soon as it's greater than bound, the symbol can't be the best one then
+     */
+    private double compare(int pos, int index, Mat symbol, double colsCoefficient, double coefficientCorrection, Move moveH, double bound) {
+        long[] bits;
+        if (template) return templateCompare(pos, index, moveH);
+        if (bitMatch && (bits = symbols.getInkRows(index)) != null)
+            return bitCompare(pos, bits, symbol.cols(), colsCoefficient, coefficientCorrection, moveH);
+        return compare(pos, symbols.getPixels(index), symbol.cols(), colsCoefficient, coefficientCorrection, moveH, bound);
+    }
+
+    /**
+     * symbol - the pixels of the symbol, see CharacterSet.getPixels, the threshold is read from bandPixels
+     */
+    private double compare(int pos, byte[] symbol, int cols, double colsCoefficient, double coefficientCorrection, Move moveH, double bound) {
+        int rows = symbol.length / cols, lineCols = thresh1Line.cols();
+        double diffsSSum = 0, diffsTSum = 0;
+        for (int i = 0; i < rows; i++) {
+            // the sums only grow
+            if ((diffsSSum / coefficientCorrection + diffsTSum) / colsCoefficient > bound) break;
+            // the row of the symbol moved to the row i, -1 if it's white
+            int from = moveH == Move.CENTER ? i : moveH == Move.UP ? i - 1 : moveH == Move.DOWN ? i + 1 : -1;
+            if (from >= rows) from = -1;
+            for (int j = 0; j < cols; j++) {
+                int s, t, diff;
+                s = from >= 0 ? symbol[from * cols + j] & 0xFF : 255;
+                t = bandPixels[(i * lineCols + pos + j) * bandChannels] & 0xFF;
                 diff = s - t;
-                if (Math.abs(diff) <= DIFF) continue;
+                if (Math.abs(diff) <= config.DIFF) continue;
                 if (diff < 0) diffsSSum -= diff;
                 else diffsTSum += diff;
             }
+        }
 
         return (diffsSSum / coefficientCorrection + diffsTSum) / colsCoefficient;
         //return (diffsSSum + diffsTSum) / colsCoefficient / coefficientCorrection;
     }
 
-    private double multi9Compare(int leftPos, Mat symbol, double c, double cCr, int flag) {
+    private double multi9Compare(int leftPos, int index, Mat symbol, double c, double cCr, int flag, double bound) {
         // Center
-        double diff, bestC = compare(leftPos + SYMBOL_HORIZONTAL_SHIFT, symbol, c, cCr, Move.CENTER);
+        double diff, bestC = compare(leftPos + SYMBOL_HORIZONTAL_SHIFT, index, symbol, c, cCr, Move.CENTER, bound);
         if (flag == FLAG_DONT_MOVE) return bestC;
-        diff = compare(leftPos + SYMBOL_HORIZONTAL_SHIFT, symbol, c, cCr, Move.UP);
+        diff = compare(leftPos + SYMBOL_HORIZONTAL_SHIFT, index, symbol, c, cCr, Move.UP, Math.min(bound, bestC));
         if (bestC > diff) bestC = diff;
-        diff = compare(leftPos + SYMBOL_HORIZONTAL_SHIFT, symbol, c, cCr, Move.DOWN);
+        diff = compare(leftPos + SYMBOL_HORIZONTAL_SHIFT, index, symbol, c, cCr, Move.DOWN, Math.min(bound, bestC));
         if (bestC > diff) bestC = diff;
         //if (bestC < 50) return 0;
         if (flag != FLAG_DONT_MOVE_X) {
             // Left
-            diff = compare(leftPos, symbol, c, cCr, Move.CENTER);
+            diff = compare(leftPos, index, symbol, c, cCr, Move.CENTER, Math.min(bound, bestC));
             if (bestC > diff) bestC = diff;
-            diff = compare(leftPos, symbol, c, cCr, Move.UP);
+            diff = compare(leftPos, index, symbol, c, cCr, Move.UP, Math.min(bound, bestC));
             if (bestC > diff) bestC = diff;
-            diff = compare(leftPos, symbol, c, cCr, Move.DOWN);
+            diff = compare(leftPos, index, symbol, c, cCr, Move.DOWN, Math.min(bound, bestC));
             if (bestC > diff) bestC = diff;
             //if (bestC < 50) return 0;
             // Right
-            diff = compare(leftPos + SYMBOL_HORIZONTAL_SHIFT * 2, symbol, c, cCr, Move.CENTER);
+            diff = compare(leftPos + SYMBOL_HORIZONTAL_SHIFT * 2, index, symbol, c, cCr, Move.CENTER, Math.min(bound, bestC));
             if (bestC > diff) bestC = diff;
-            diff = compare(leftPos + SYMBOL_HORIZONTAL_SHIFT * 2, symbol, c, cCr, Move.UP);
+            diff = compare(leftPos + SYMBOL_HORIZONTAL_SHIFT * 2, index, symbol, c, cCr, Move.UP, Math.min(bound, bestC));
             if (bestC > diff) bestC = diff;
-            diff = compare(leftPos + SYMBOL_HORIZONTAL_SHIFT * 2, symbol, c, cCr, Move.DOWN);
+            diff = compare(leftPos + SYMBOL_HORIZONTAL_SHIFT * 2, index, symbol, c, cCr, Move.DOWN, Math.min(bound, bestC));
             if (bestC > diff) bestC = diff;
             //if (bestC < 50) return 0;
         }
@@ -280,81 +498,211 @@ public class ProcessPixelLine implements ProcessLine<Mat> {
         if (width < 8) return -1;
         final int spacePosNumber = 0;
         int best = -1;
-        double bestC = Double.MAX_VALUE;
+        double bestC = Double.MAX_VALUE, secondC = Double.MAX_VALUE;
+        topCount = 0;
+        boolean ordered = !pyramid && !template && profile == null, probed = false;
+        probeCount = 0;
 
         for (int i = 0; i < symbols.size(); i++) {
-            if (!symbols.isValid(i)) continue;
+            if (i != spacePosNumber && ordered && !probed) {
+                probed = true;
+                probe(pos, width);
+                for (int k = 0; k < probeCount; k++)
+                    if (probeScores[k] < bestC || probeScores[k] == bestC && probes[k] < best) {
+                        bestC = probeScores[k];
+                        best = probes[k];
+                    }
+                if (config.FORK_CANDIDATES && idleWorkers()) {
+                    // the rest of the symbols are split between the idle workers
+                    AtomicLong shared = new AtomicLong(Double.doubleToLongBits(bestC));
+                    Best found = new Best(bestC, best).min(new CandidateTask(pos, i, symbols.size(), shared).invoke());
+                    symbols.countCell(false);
+                    return found.number();
+                }
+            }
+            // nothing after a perfect match can be chosen instead of it
+            if (bestC == 0 && i > best && profile == null) break;
+            if (!isCandidate(i, width)) continue;
             Mat symbol = symbols.get(i);
-            if (width - symbol.cols() <= SYMBOL_HORIZONTAL_SHIFT + 1) continue;
 
             if (i == spacePosNumber) {
-                double diff = compare(pos, symbol, symbols.getCoefficient(i), symbols.getCorrection(i), Move.CENTER);
-                if (diff < 500) return i;
+                double diff = blankSpace
+                        ? (inkPrefix[pos + symbol.cols()] - inkPrefix[pos]) / symbols.getCoefficient(i)
+                        : compare(pos, i, symbol, symbols.getCoefficient(i), symbols.getCorrection(i), Move.CENTER, Double.MAX_VALUE);
+                if (diff < 500) {
+                    symbols.countCell(blankSpace);
+                    return i;
+                }
                 bestC = diff;
                 best = i;
-                if (SPIN) i += 2;
+                if (symbols.isSpin()) i += 2;
                 continue;
             }
 
             int flag = symbols.getFlag(i);
-            if (SPIN && i % 3 != 0 && (flag == FLAG_DONT_SPIN || flag == FLAG_DONT_MOVE)) continue;
+            if (pyramid) {
+                keepCandidate(i, coarseCompare(pos, i));
+                continue;
+            }
 
-            double diff = multi9Compare(pos - SYMBOL_HORIZONTAL_SHIFT, symbol, symbols.getCoefficient(i), symbols.getCorrection(i), flag);
-            if (diff == 0) return i;
-            if (bestC > diff) {
+            int k = 0;
+            while (k < probeCount && probes[k] != i) k++;
+            long start = profile != null ? System.nanoTime() : 0;
+            double diff = k < probeCount ? probeScores[k]
+                    : multi9Compare(pos - SYMBOL_HORIZONTAL_SHIFT, i, symbol, symbols.getCoefficient(i), symbols.getCorrection(i), flag,
+                    profile != null ? Double.MAX_VALUE : bestC);
+            if (profile != null) profile.spent(i, System.nanoTime() - start);
+            if (diff < bestC || diff == bestC && i < best) {
+                secondC = bestC;
                 bestC = diff;
                 best = i;
+            } else if (diff < secondC) secondC = diff;
+        }
+        if (profile != null && best > spacePosNumber && !pyramid && secondC != Double.MAX_VALUE)
+            profile.win(best, secondC - bestC);
+
+        if (pyramid) {
+            // the candidates in the order of the symbols, so equal results are chosen as by the exact matcher
+            Arrays.sort(topIndexes, 0, topCount);
+            for (int k = 0; k < topCount; k++) {
+                int i = topIndexes[k];
+                double diff = multi9Compare(pos - SYMBOL_HORIZONTAL_SHIFT, i, symbols.get(i),
+                        symbols.getCoefficient(i), symbols.getCorrection(i), symbols.getFlag(i), bestC);
+                if (diff == 0) {
+                    symbols.countCell(false);
+                    return i;
+                }
+                if (bestC > diff) {
+                    bestC = diff;
+                    best = i;
+                }
             }
         }
 
+        symbols.countCell(false);
         return best;
     }
 
+    /**
+     * compares the recent and the popular symbols, each once, with the bound of the best of them
+     */
+    private void probe(int pos, int width) {
+        int[] popular = symbols.getPopular();
+        if (probes.length < RECENT + popular.length) {
+            probes = new int[RECENT + popular.length];
+            probeScores = new double[RECENT + popular.length];
+        }
+        double bound = Double.MAX_VALUE;
+        for (int n = 0; n < RECENT + popular.length; n++) {
+            int i = n < RECENT ? recent[n] : popular[n - RECENT];
+            if (i <= 0 || !isCandidate(i, width)) continue;
+            int k = 0;
+            while (k < probeCount && probes[k] != i) k++;
+            if (k < probeCount) continue;
+            double diff = multi9Compare(pos - SYMBOL_HORIZONTAL_SHIFT, i, symbols.get(i),
+                    symbols.getCoefficient(i), symbols.getCorrection(i), symbols.getFlag(i), bound);
+            probes[probeCount] = i;
+            probeScores[probeCount++] = diff;
+            if (bound > diff) bound = diff;
+        }
+    }
+
+    private void remember(int sNumber) {
+        for (int i : recent) if (i == sNumber) return;
+        recent[recentNext] = sNumber;
+        recentNext = (recentNext + 1) % RECENT;
+    }
+
+    /**
+     * the symbol is valid and fits the rest of the line. the rotations of the symbols that don't spin are skipped
+     */
+    private boolean isCandidate(int i, int width) {
+        if (config.DETERMINISTIC ? !symbols.isLoadedValid(i) : !symbols.isValid(i)) return false;
+        if (width - symbols.get(i).cols() <= SYMBOL_HORIZONTAL_SHIFT + 1) return false;
+        if (i == 0 || !symbols.isSpin() || i % 3 == 0) return true;
+        int flag = symbols.getFlag(i);
+        return flag != FLAG_DONT_SPIN && flag != FLAG_DONT_MOVE;
+    }
+
+    private static boolean idleWorkers() {
+        ForkJoinPool pool = ForkJoinTask.getPool();
+        return pool != null && pool.getQueuedSubmissionCount() == 0 && pool.getActiveThreadCount() < pool.getParallelism();
+    }
+
+    /**
+     * compares the symbols from..to-1 at the position pos. shared - the best compare of all parts as
+     * Double.doubleToLongBits, the compares are not negative, so the bits are ordered as the values
+     */
+    // a ForkJoinTask is Serializable, the tasks of a line are never serialized
+    @SuppressWarnings("serial")
+    private final class CandidateTask extends RecursiveTask<Best> {
+        private final int pos, from, to;
+        private final AtomicLong shared;
+
+        CandidateTask(int pos, int from, int to, AtomicLong shared) {
+            this.pos = pos;
+            this.from = from;
+            this.to = to;
+            this.shared = shared;
+        }
+
+        @Override
+        protected Best compute() {
+            if (to - from > FORK_SYMBOLS) {
+                int middle = (from + to) >>> 1;
+                CandidateTask right = new CandidateTask(pos, middle, to, shared);
+                right.fork();
+                Best left = new CandidateTask(pos, from, middle, shared).compute();
+                return left.min(right.join());
+            }
+            int width = thresh1Line.cols() - pos, best = -1;
+            double bestC = Double.MAX_VALUE;
+            for (int i = from; i < to; i++) {
+                if (!isCandidate(i, width)) continue;
+                double bound = Math.min(bestC, Double.longBitsToDouble(shared.get()));
+                double diff = multi9Compare(pos - SYMBOL_HORIZONTAL_SHIFT, i, symbols.get(i),
+                        symbols.getCoefficient(i), symbols.getCorrection(i), symbols.getFlag(i), bound);
+                if (bestC > diff) {
+                    bestC = diff;
+                    best = i;
+                    shared.accumulateAndGet(Double.doubleToLongBits(diff), Math::min);
+                }
+                if (diff == 0) break;
+            }
+            return new Best(bestC, best);
+        }
+    }
+
     private void addPixSymbol(Mat symbol, int pos, boolean isFilling) {
-        if (BLACK_BACKGROUND) {
-            Mat temp = new Mat(
-                    symbol.rows(), symbol.cols(),
-                    CV_8UC1
-            );
-            Core.subtract(new Mat(
-                    symbol.rows(), symbol.cols(),
-                    CV_8UC1,
-                    new Scalar(255.)
-            ), symbol, temp);
-            symbol = temp;
+        if (config.BLACK_BACKGROUND) {
+            // 255 - symbol
+            Core.bitwise_not(symbol, inverted);
+            symbol = inverted;
         }
-        if (COLORED) {
+        if (config.COLORED) {
             int symbolPixels = symbol.rows() * symbol.cols();
-            Mat temp = new Mat(
-                    symbol.rows(), symbol.cols(),
-                    CV_8UC3
-            );
-            double avgColor1 = 0., avgColor2 = 0, avgColor3 = 0;
-            for (int i = 0; i < symbol.rows(); i++)
-                for (int j = 0; j < symbol.cols(); j++) {
-                    double sPix = symbol.get(i, j)[0];
-                    temp.put(i, j, sPix, sPix, sPix);
-                    if (isFilling) {
-                        avgColor1 += rgbLine.get(i, pos + j)[0];
-                        avgColor2 += rgbLine.get(i, pos + j)[1];
-                        avgColor3 += rgbLine.get(i, pos + j)[2];
-                    }
-                }
+            Mat temp = colored;
+            Imgproc.cvtColor(symbol, temp, Imgproc.COLOR_GRAY2BGR);
             if (isFilling) {
-                avgColor1 = avgColor1 / symbolPixels + 50;
-                avgColor2 = avgColor2 / symbolPixels + 50;
-                avgColor3 = avgColor3 / symbolPixels + 50;
-                Mat colorMask = new Mat(
-                        symbol.rows(), symbol.cols(),
-                        CV_8UC3,
-                        new Scalar(avgColor1, avgColor2, avgColor3)
-                );
-                Mat temp2 = new Mat(
-                        symbol.rows(), symbol.cols(),
-                        CV_8UC3
-                );
-
-                if (BLACK_BACKGROUND) Core.bitwise_and(colorMask, temp, temp2);
+                // the symbol has the height of the line, so the sums of its columns are the sums under it
+                if (!colorSummed) sumColors();
+                int from = pos * 3, to = (pos + symbol.cols()) * 3;
+                double avgColor1 = (double) (colorPrefix[to] - colorPrefix[from]) / symbolPixels + 50;
+                double avgColor2 = (double) (colorPrefix[to + 1] - colorPrefix[from + 1]) / symbolPixels + 50;
+                double avgColor3 = (double) (colorPrefix[to + 2] - colorPrefix[from + 2]) / symbolPixels + 50;
+                colorMask.create(symbol.rows(), symbol.cols(), CV_8UC3);
+                // as setTo(new Scalar(...)), which returns a new Mat, rounded to even and saturated
+                byte c1 = saturate(avgColor1), c2 = saturate(avgColor2), c3 = saturate(avgColor3);
+                if (maskPixels.length < symbolPixels * 3) maskPixels = new byte[symbolPixels * 3];
+                for (int i = 0; i < symbolPixels * 3; i += 3) {
+                    maskPixels[i] = c1;
+                    maskPixels[i + 1] = c2;
+                    maskPixels[i + 2] = c3;
+                }
+                colorMask.put(0, 0, maskPixels, 0, symbolPixels * 3);
+                Mat temp2 = filled;
+
+                if (config.BLACK_BACKGROUND) Core.bitwise_and(colorMask, temp, temp2);
                 else Core.bitwise_or(colorMask, temp, temp2);
 
                 symbol = temp2;
@@ -362,15 +710,31 @@ public class ProcessPixelLine implements ProcessLine<Mat> {
                 symbol = temp;
             }
         }
-        if (SPLIT_FILL && isFilling)
-            symbol.copyTo(fillLine.submat(new Rect(pos, 0, symbol.cols(), symbol.rows())));
-        else
-            symbol.copyTo(dstLine.submat(new Rect(pos, 0, symbol.cols(), symbol.rows())));
+        // row by row, the band isn't continuous, and without a submat for every symbol
+        Mat dst = config.SPLIT_FILL && isFilling ? fillLine : dstLine;
+        int rowBytes = symbol.cols() * symbol.channels(), size = symbol.rows() * rowBytes;
+        // a multiple of 3, get checks the length against the channels
+        if (glyphPixels.length < size) glyphPixels = new byte[(size + 2) / 3 * 3];
+        symbol.get(0, 0, glyphPixels);
+        for (int i = 0; i < symbol.rows(); i++) dst.put(i, pos, glyphPixels, i * rowBytes, rowBytes);
+    }
+
+    private static byte saturate(double value) {
+        return (byte) Math.max(0, Math.min(255, (int) Math.rint(value)));
     }
 
     @Override
     public void run() {
-        final Random random = new Random(FRAME_NUMBER + LINE_NUMBER);
+        running = true;
+        try {
+            walk();
+        } finally {
+            running = false;
+        }
+        if (latch != null) latch.countDown();
+    }
+
+    private void walk() {
         int widthPix = thresh1Line.cols();
         int posPix = 5, maxPosPix = widthPix - 5, spaceSize = symbols.get(0).cols();
         final int spaceNumber = 0;
@@ -384,21 +748,26 @@ public class ProcessPixelLine implements ProcessLine<Mat> {
             isFillChar = false;
             int sNumber = sSelect(posPix);
             if (sNumber == -1) break;
+            if (sNumber != 0) remember(sNumber);
 
             Mat symbol = symbols.getWithInc(sNumber);
 
             if (grayLine != null && sNumber == spaceNumber) {
                 // checking the gray pixel behind the symbol
-                double pixel = grayLine.get(grayLine.rows() / 2, posPix + symbol.cols() / 2)[0];
+                grayLine.get(grayLine.rows() / 2, posPix + symbol.cols() / 2, this.pixel);
+                double pixel = this.pixel[0] & 0xFF;
                 // if there is a second thresh, make sure that there is no dark pixel on it
-                if (pixel < FILL_DEPTH && !fillSNumbers.isEmpty() && (thresh2Line == null ||
-                        thresh2Line.get(thresh2Line.rows() / 2, posPix + symbol.cols() / 2)[0] < 200.)) {
+                if (pixel < config.FILL_DEPTH && !fillSNumbers.isEmpty() && (thresh2Line == null ||
+                        (thresh2Line.get(thresh2Line.rows() / 2, posPix + symbol.cols() / 2, this.pixel) > 0
+                                && (this.pixel[0] & 0xFF) < 200))) {
                     // move to the previous position and put a wide symbol
                     if (waitNextSpace) posPix -= spaceSize;
                     // we select the fill according to the brightness of the pixel
-                    Pair<Integer, Integer> shiftPAndSNumber = fillSNumbers
-                            .get((int) ((fillSNumbers.size()) * pixel / FILL_DEPTH)).next(posPix);
-                    sNumber = shiftPAndSNumber.b;
+                    int layer = (int) ((fillSNumbers.size()) * pixel / config.FILL_DEPTH);
+                    FillRingList fillSNumber = fillSNumbers.get(layer);
+                    if (swap) fillSNumber = fillSNumber.swapped(FRAME_NUMBER);
+                    int fillShift = fillSNumber.shift(posPix, fillStarts[layer]);
+                    sNumber = fillSNumber.glyph(posPix, fillStarts[layer]);
                     symbol = symbols.get(sNumber);
 
                     if (!waitNextSpace && symbol.cols() > Math.ceil(spaceSize * 1.5)) {
@@ -408,7 +777,7 @@ public class ProcessPixelLine implements ProcessLine<Mat> {
                         sNumber = spaceNumber; //!!
                         symbol = symbols.get(sNumber);
                     } else {// the alignment is applied when we put the fill symbol
-                        posPix += shiftPAndSNumber.a; // if FILL_ALIGNMENT is disabled, this value is always 0
+                        posPix += fillShift; // if FILL_ALIGNMENT is disabled, this value is always 0
                     }
 
                     if (widthPix - posPix - symbol.cols() < 2) break;
@@ -417,15 +786,10 @@ public class ProcessPixelLine implements ProcessLine<Mat> {
 
             } else waitNextSpace = false;
 
-            Optional<Integer> cpOp = symbols.getCodePoint(sNumber);
-            String cpString = null;
-            Integer cp = null;
-            if (cpOp.isPresent()) {
-                cp = cpOp.get();
-                cpString = Arrays.toString(Character.toChars(cp));
-                //if (cpString.equals('0')) cpString = (char) (random.nextInt(8) + 50);
+            int cp = symbols.codePointAt(sNumber);
+            if (cp != -1) {
                 // writing a text character
-                if (dstTextLine != null) {
+                if (haveText) {
                     // it will work in the second round, just before waitNextSpace becomes false
                     if (sNumber != spaceNumber && waitNextSpace)
                         dstTextLine.deleteCharAt(dstTextLine.length() - 1); // remove the extra space
@@ -437,11 +801,6 @@ public class ProcessPixelLine implements ProcessLine<Mat> {
             // printing a pixel character
             // the pixel line is filled with white or black pixels by default
             if (sNumber != spaceNumber) {
-                if (cpString != null && cpString.equals("0")) {
-                    cp = String.valueOf(random.nextInt(8) + 50).codePointAt(0);
-                    if (symbols.getByCodePoint(cp) != null)
-                        symbol = symbols.getByCodePoint(cp);
-                }
                 addPixSymbol(symbol, posPix, isFillChar);
                 posPix += SYMBOL_SPACING;
                 waitNextSpace = false;
@@ -449,8 +808,6 @@ public class ProcessPixelLine implements ProcessLine<Mat> {
 
             posPix += symbol.cols();
         }
-
-        latch.countDown();
     }
 
     @Override
@@ -465,7 +822,7 @@ public class ProcessPixelLine implements ProcessLine<Mat> {
 
     @Override
     public String getTextResult() {
-        if (dstTextLine != null) return dstTextLine.toString();
+        if (haveText) return dstTextLine.toString();
         else return "";
     }
 
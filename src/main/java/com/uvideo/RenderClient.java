@@ -0,0 +1,51 @@
+package com.uvideo;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+public class RenderClient {
+
+    /**
+     * Sends one command to RenderDaemon and prints the answers until the job is done.
+     * RenderClient [--port <n> | --unix <path>] RENDER sample.webm HEIGHT=360
+     */
+
+    public static void main(String[] args) throws IOException {
+        SocketAddress address = RenderDaemon.address(args);
+        List<String> command = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--port") || args[i].equals("--unix")) i++;
+            else command.add(args[i]);
+        }
+        if (command.isEmpty()) {
+            System.out.println("usage: RenderClient [--port <n> | --unix <path>] RENDER|STATUS|SHUTDOWN ...");
+            return;
+        }
+
+        try (SocketChannel channel = address instanceof UnixDomainSocketAddress
+                ? SocketChannel.open(StandardProtocolFamily.UNIX)
+                : SocketChannel.open();
+             BufferedReader in = new BufferedReader(new InputStreamReader(
+                     Channels.newInputStream(channel), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(Channels.newOutputStream(channel), true, StandardCharsets.UTF_8)) {
+            channel.connect(address);
+            out.println(String.join(" ", command));
+            String line;
+            while ((line = in.readLine()) != null) {
+                System.out.println(line);
+                if (line.startsWith("DONE") || line.startsWith("ERROR")
+                        || line.startsWith("STATUS") || line.startsWith("BYE")) break;
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.uvideo;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Formatter;
+
+public class RenderConfig implements Cloneable {
+
+    /**
+     * The settings of one job. The fields have the names of the constants in MainClass and
+     * ProcessPixelLine and start with their values, the description is there.
+     * SYMBOLS_FOLDER, SPIN and FILL_ALIGNMENT select the SymbolSet, the other fields can be
+     * different for each job using the same loaded symbols.
+     * A job can change any field by name, e.g. set("HEIGHT", "360") or parse("HEIGHT=360 SPIN=false").
+     */
+
+    public String  SYMBOLS_FOLDER =         MainClass.SYMBOLS_FOLDER;
+    public int     HEIGHT =                 MainClass.HEIGHT;
+    public String  HEIGHTS =                MainClass.HEIGHTS;
+    public String  VARIANTS =               MainClass.VARIANTS;
+    public double  FLUCTUATIONS_HEIGHT =    MainClass.FLUCTUATIONS_HEIGHT;
+    public int     FRAMERATE =              MainClass.FRAMERATE;
+    public int     CREATE_FRAMES =          MainClass.CREATE_FRAMES;
+    public int     SKIPPED_FRAMES =         MainClass.SKIPPED_FRAMES;
+    public int     LINE_SPACING =           MainClass.LINE_SPACING;
+    public double  FILL_DEPTH =             MainClass.FILL_DEPTH;
+    public int     DIFF =                   ProcessPixelLine.DIFF;
+    public String  MATCHER =                ProcessPixelLine.MATCHER;
+    public int     PYRAMID_CANDIDATES =     ProcessPixelLine.PYRAMID_CANDIDATES;
+    public boolean FORK_CANDIDATES =        ProcessPixelLine.FORK_CANDIDATES;
+    public boolean BACK_SUB =               MainClass.BACK_SUB;
+    public boolean BLACK_BACKGROUND =       MainClass.BLACK_BACKGROUND;
+    public boolean COLORED =                MainClass.COLORED;
+    public boolean FILL_ALIGNMENT =         MainClass.FILL_ALIGNMENT;
+    public boolean SPLIT_FILL =             MainClass.SPLIT_FILL;
+    public boolean SPIN =                   MainClass.SPIN;
+    public boolean USE_CANNY =              MainClass.USE_CANNY;
+    public boolean USE_THRESH =             MainClass.USE_THRESH;
+    public boolean USE_2_THRESH =           MainClass.USE_2_THRESH;
+    public boolean BETTER_THRESH =          MainClass.BETTER_THRESH;
+    public boolean DETERMINISTIC =          MainClass.DETERMINISTIC;
+    public int     REMOVE_NULL =            MainClass.REMOVE_NULL;
+    public int     STRIP_PIXELS =           MainClass.STRIP_PIXELS;
+    public String  AUDIO =                  MainClass.AUDIO;
+    public String  ENCODER =                MainClass.ENCODER;
+    public int     ENCODER_THREADS =        MainClass.ENCODER_THREADS;
+    public int     ENCODER_SPEED =          MainClass.ENCODER_SPEED;
+    public String  ENCODER_DEADLINE =       MainClass.ENCODER_DEADLINE;
+    public int     CHECKPOINT_FRAMES =      MainClass.CHECKPOINT_FRAMES;
+    public boolean OUTPUT_FRAMES =          MainClass.OUTPUT_FRAMES;
+    public boolean OUTPUT_VIDEO =           MainClass.OUTPUT_VIDEO;
+    public boolean OUTPUT_CANNY =           MainClass.OUTPUT_CANNY;
+    public boolean OUTPUT_THRESH =          MainClass.OUTPUT_THRESH;
+    public boolean OUTPUT_TEXT =            MainClass.OUTPUT_TEXT;
+    public boolean TEXT_ARCHIVE =           MainClass.TEXT_ARCHIVE;
+    public int     TEXT_KEYFRAMES =         MainClass.TEXT_KEYFRAMES;
+    public boolean OUTPUT_ORIGINAL_FRAMES = MainClass.OUTPUT_ORIGINAL_FRAMES;
+
+    public RenderConfig set(String name, String value) throws IllegalArgumentException {
+        Field field;
+        try {
+            field = RenderConfig.class.getField(name);
+        } catch (NoSuchFieldException e) {
+            throw new IllegalArgumentException("unknown setting " + name);
+        }
+        try {
+            Class<?> type = field.getType();
+            if (type == int.class) field.setInt(this, Integer.parseInt(value));
+            else if (type == double.class) field.setDouble(this, Double.parseDouble(value));
+            else if (type == boolean.class) {
+                if (!value.equalsIgnoreCase("true") && !value.equalsIgnoreCase("false"))
+                    throw new IllegalArgumentException(name + " is true or false, not " + value);
+                field.setBoolean(this, Boolean.parseBoolean(value));
+            } else field.set(this, value);
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException(name + " can't be changed", e);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " is a number, not " + value);
+        }
+        return this;
+    }
+
+    /**
+     * settings separated by spaces, NAME=value
+     */
+    public RenderConfig parse(String settings) throws IllegalArgumentException {
+        for (String setting : settings.trim().split("\\s+")) {
+            if (setting.isEmpty()) continue;
+            int eq = setting.indexOf('=');
+            if (eq < 1) throw new IllegalArgumentException("expected NAME=value, found " + setting);
+            set(setting.substring(0, eq), setting.substring(eq + 1));
+        }
+        return this;
+    }
+
+    @Override
+    public RenderConfig clone() {
+        try {
+            return (RenderConfig) super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuffer buffer = new StringBuffer();
+        Formatter fmt = new Formatter(buffer);
+        for (Field field : RenderConfig.class.getFields()) {
+            if (Modifier.isStatic(field.getModifiers())) continue;
+            try {
+                fmt.format("%s=%s ", field.getName(), field.get(this));
+            } catch (IllegalAccessException e) {
+                e.printStackTrace();
+            }
+        }
+        return buffer.toString().trim();
+    }
+}
@@ -0,0 +1,227 @@
+package com.uvideo;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Slf4j
+public class RenderDaemon {
+
+    /**
+     * Converts files on request without starting a new JVM for each of them, so OpenCV, the
+     * loaded symbols (a SymbolSet per SYMBOLS_FOLDER) and the JIT stay warm between jobs.
+     * Listens on localhost:PORT, or on a Unix domain socket with --unix <path>. The protocol is
+     * text, one command per line:
+     *  RENDER <file> [NAME=value ...] - converts the file with its own RenderConfig, any field of
+     *   it can be set, e.g. RENDER sample.webm HEIGHT=360 SPIN=false SYMBOLS_FOLDER=MS_PGothic.ttf_15_00.
+     *   the answers are ACCEPTED <id>, PROGRESS <id> <frames> <total> after every frame and at the
+     *   end DONE <id> frames=<n> time=<s>s output=<file> or ERROR <id> <message>.
+     *  PREVIEW <file> <first>[-<last>] [NAME=value ...] - renders only these frames, see Preview. the
+     *   answers are FRAME <n> <png> and TEXT <line> for every line of its text, at the end DONE or
+     *   ERROR <message>. it isn't queued, the file stays open for the next previews.
+     *  STATUS - the number of running and queued jobs.
+     *  SHUTDOWN - stops accepting connections, the accepted jobs are finished.
+     * A connection waits for its job, several jobs at once need several connections.
+     * MAX_JOBS - jobs converted at the same time, the others wait in the queue. the lines of all
+     * jobs are processed by the same line workers of MainClass.
+     */
+
+    private static final int PORT = 7077;
+    private static final int MAX_JOBS = Math.max(1, Runtime.getRuntime().availableProcessors() / 4);
+
+    private final ServerSocketChannel server;
+    private final ThreadPoolExecutor jobs = new ThreadPoolExecutor(MAX_JOBS, MAX_JOBS,
+            0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+            new ThreadFactoryBuilder().setNameFormat("job-%d").build());
+    private final ExecutorService connections = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("connection-%d").setDaemon(true).build());
+    private final AtomicInteger jobNumber = new AtomicInteger();
+    private final Map<String, Preview> previews = new ConcurrentHashMap<>();
+    private volatile boolean running = true;
+
+    private RenderDaemon(SocketAddress address) throws IOException {
+        server = address instanceof UnixDomainSocketAddress
+                ? ServerSocketChannel.open(StandardProtocolFamily.UNIX)
+                : ServerSocketChannel.open();
+        server.bind(address);
+    }
+
+    static SocketAddress address(String[] args) {
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals("--unix")) return UnixDomainSocketAddress.of(args[i + 1]);
+            if (args[i].equals("--port"))
+                return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(args[i + 1]));
+        }
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), PORT);
+    }
+
+    public static void main(String[] args) throws IOException {
+        SocketAddress address = address(args);
+        if (address instanceof UnixDomainSocketAddress unix) Files.deleteIfExists(unix.getPath());
+        // loads OpenCV and the default symbols before the first job
+        SymbolSet.get(new RenderConfig());
+        log.info("max jobs " + MAX_JOBS);
+        new RenderDaemon(address).listen();
+        if (address instanceof UnixDomainSocketAddress unix) Files.deleteIfExists(unix.getPath());
+    }
+
+    private void listen() {
+        System.out.println("Listening on " + address());
+        while (running) {
+            try {
+                SocketChannel client = server.accept();
+                connections.execute(() -> serve(client));
+            } catch (IOException e) {
+                if (running) e.printStackTrace();
+            }
+        }
+        jobs.shutdown();
+        try {
+            jobs.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        for (Preview preview : previews.values()) {
+            try {
+                preview.close();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private String address() {
+        try {
+            return String.valueOf(server.getLocalAddress());
+        } catch (IOException e) {
+            return "?";
+        }
+    }
+
+    private void serve(SocketChannel client) {
+        try (client;
+             BufferedReader in = new BufferedReader(new InputStreamReader(
+                     Channels.newInputStream(client), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(Channels.newOutputStream(client), true, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) continue;
+                String command = line.split("\\s+", 2)[0].toUpperCase();
+                switch (command) {
+                    case "RENDER" -> render(line.substring(command.length()).trim(), out);
+                    case "PREVIEW" -> preview(line.substring(command.length()).trim(), out);
+                    case "STATUS" -> out.println("STATUS running=" + jobs.getActiveCount()
+                            + " queued=" + jobs.getQueue().size());
+                    case "SHUTDOWN" -> {
+                        out.println("BYE");
+                        running = false;
+                        server.close();
+                        return;
+                    }
+                    default -> out.println("ERROR unknown command " + command);
+                }
+            }
+        } catch (IOException e) {
+            log.warn("connection closed: " + e.getMessage());
+        }
+    }
+
+    private void preview(String arguments, PrintWriter out) {
+        // the same as RENDER, the last token of the file name is the range of the frames
+        List<String> fileParts = new ArrayList<>();
+        StringBuilder settings = new StringBuilder();
+        for (String token : arguments.split("\\s+")) {
+            if (token.matches("[A-Z_0-9]+=.*")) settings.append(token).append(' ');
+            else fileParts.add(token);
+        }
+        try {
+            if (fileParts.size() < 2) throw new IllegalArgumentException("expected PREVIEW <file> <first>[-<last>]");
+            int[] range = Preview.range(fileParts.removeLast());
+            String fileName = MainClass.resolveInput(String.join(" ", fileParts));
+            if (!new File(fileName).isFile()) throw new IllegalArgumentException("file not found " + fileName);
+            RenderConfig config = new RenderConfig().parse(settings.toString());
+            Preview preview = previews.get(fileName);
+            if (preview == null) {
+                preview = new Preview(fileName);
+                Preview previous = previews.putIfAbsent(fileName, preview);
+                if (previous != null) {
+                    preview.close();
+                    preview = previous;
+                }
+            }
+            List<MainClass.RenderedFrame> frames = preview.render(range[0], range[1], config);
+            for (int i = 0; i < frames.size(); i++) {
+                out.println("FRAME " + (range[0] + i) + " " + preview.save(frames.get(i), range[0] + i));
+                if (frames.get(i).text != null)
+                    for (String line : frames.get(i).text) out.println("TEXT " + line);
+            }
+            out.println("DONE");
+        } catch (IllegalArgumentException e) {
+            out.println("ERROR " + e.getMessage());
+        } catch (Exception e) {
+            e.printStackTrace();
+            out.println("ERROR " + e);
+        }
+    }
+
+    private void render(String arguments, PrintWriter out) {
+        int id = jobNumber.incrementAndGet();
+        // the settings are the tokens NAME=value, the rest is the file name, which may contain spaces
+        List<String> fileParts = new ArrayList<>();
+        StringBuilder settings = new StringBuilder();
+        for (String token : arguments.split("\\s+")) {
+            if (token.matches("[A-Z_0-9]+=.*")) settings.append(token).append(' ');
+            else fileParts.add(token);
+        }
+        String fileName = MainClass.resolveInput(String.join(" ", fileParts));
+        RenderConfig config;
+        try {
+            if (fileParts.isEmpty() || !new File(fileName).isFile())
+                throw new IllegalArgumentException("file not found " + fileName);
+            config = new RenderConfig().parse(settings.toString());
+            // loaded here, so that a wrong folder is reported before the job is queued
+            SymbolSet.get(config);
+        } catch (IllegalArgumentException e) {
+            out.println("ERROR " + id + " " + e.getMessage());
+            return;
+        }
+        out.println("ACCEPTED " + id);
+        log.info("job " + id + " " + fileName + " " + config);
+
+        long time = System.currentTimeMillis();
+        Future<Integer> job = jobs.submit(() -> MainClass.convert(fileName, "job" + id, config,
+                (frames, total) -> out.println("PROGRESS " + id + " " + frames + " " + total)));
+        try {
+            int frames = job.get();
+            out.println("DONE " + id + " frames=" + frames
+                    + " time=" + TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - time) + "s"
+                    + " output=" + MainClass.convertedName(fileName));
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+            out.println("ERROR " + id + " " + e.getCause());
+        } catch (InterruptedException e) {
+            out.println("ERROR " + id + " interrupted");
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.uvideo;
+
+import org.opencv.core.Mat;
+
+import static org.opencv.core.CvType.CV_32FC1;
+
+public class ScoreKernels {
+
+    /**
+     * The symbols of a CharacterSet as kernels for the "template" MATCHER, for one DIFF.
+     * If the threshold is black and white, its black is DIFF, see MainClass.renderThresholds, and
+     * a pixel of the symbol s adds to the compare either a(s) = 255 - s if 255 - s > DIFF, when the
+     * threshold is white, or b(s) = s - DIFF if s - DIFF > DIFF, when it's black. so the compare of a symbol at every position of the line is
+     * (sum b(s) + sum T * (a(s) / cCr - b(s))) / c, T - the threshold 0..1, the second sum is
+     * the correlation of T with the kernel, which Imgproc.matchTemplate computes for the whole line.
+     * kernels, constants - (size * 3) the kernel a(s) / cCr - b(s) and sum b(s) divided by c, for
+     * every symbol and vertical shift: CENTER, UP, DOWN. the row a shift leaves is white, as in
+     * ProcessPixelLine.compare.
+     */
+
+    static final int CENTER = 0;
+    static final int UP = 1;
+    static final int DOWN = 2;
+
+    private final Mat[] kernels;
+    private final double[] constants;
+
+    ScoreKernels(CharacterSet<Mat> symbols, int diff) {
+        kernels = new Mat[symbols.size() * 3];
+        constants = new double[symbols.size() * 3];
+        for (int i = 0; i < symbols.size(); i++) {
+            Mat symbol = symbols.get(i);
+            int rows = symbol.rows(), cols = symbol.cols();
+            byte[] pixels = new byte[rows * cols];
+            symbol.get(0, 0, pixels);
+            for (int move = CENTER; move <= DOWN; move++) {
+                float[] kernel = new float[rows * cols];
+                double constant = 0;
+                for (int r = 0; r < rows; r++) {
+                    int from = move == UP ? r - 1 : move == DOWN ? r + 1 : r;
+                    for (int c = 0; c < cols; c++) {
+                        int s = from < 0 || from >= rows ? 255 : pixels[from * cols + c] & 0xFF;
+                        double a = 255 - s > diff ? 255 - s : 0, b = s - diff > diff ? s - diff : 0;
+                        kernel[r * cols + c] = (float) ((a / symbols.getCorrection(i) - b) / symbols.getCoefficient(i));
+                        constant += b;
+                    }
+                }
+                Mat k = new Mat(rows, cols, CV_32FC1);
+                k.put(0, 0, kernel);
+                kernels[i * 3 + move] = k;
+                constants[i * 3 + move] = constant / symbols.getCoefficient(i);
+            }
+        }
+    }
+
+    public Mat kernel(int index, int move) {
+        return kernels[index * 3 + move];
+    }
+
+    public double constant(int index, int move) {
+        return constants[index * 3 + move];
+    }
+}
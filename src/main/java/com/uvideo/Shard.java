@@ -0,0 +1,50 @@
+package com.uvideo;
+
+import org.bytedeco.javacv.FFmpegLogCallback;
+
+import java.util.Arrays;
+
+public class Shard {
+
+    /**
+     * Renders the frames first..last of one file, numbered from 1 as the frames of MainClass, in
+     * the DETERMINISTIC mode, so the frames are the same as in a render of the whole file.
+     * Shard <file> <first> <last> [NAME=value ...]
+     * The video is written to the segment <file>_shard_<first>.webm, the frames and the text
+     * files get the usual names with the numbers from the start of the file. A shard can be run
+     * on any host with the same data_set, ShardCoordinator joins the segments and the text.
+     */
+
+    public static String segmentName(String fileName, int first) {
+        return fileName.replace(fileName.
+                substring(fileName.lastIndexOf(".")), String.format("_shard_%06d.webm", first));
+    }
+
+    public static int render(String fileName, int first, int last, RenderConfig config) throws Exception {
+        if (first < 1 || last < first)
+            throw new IllegalArgumentException("first < 1 || last < first");
+        RenderConfig shard = config.clone();
+        shard.DETERMINISTIC = true;
+        shard.SKIPPED_FRAMES = first - 1;
+        shard.CREATE_FRAMES = last - first + 1;
+        return MainClass.convert(fileName, segmentName(fileName, first), null, shard, null);
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.out.println("usage: Shard <file> <first> <last> [NAME=value ...]");
+            return;
+        }
+        try {
+            RenderConfig config = new RenderConfig()
+                    .parse(String.join(" ", Arrays.copyOfRange(args, 3, args.length)));
+            int frames = render(MainClass.resolveInput(args[0]),
+                    Integer.parseInt(args[1]), Integer.parseInt(args[2]), config);
+            System.out.println("shard frames " + frames);
+        } catch (Exception e) {
+            e.printStackTrace();
+            FFmpegLogCallback.set();
+            System.exit(-1);
+        }
+    }
+}
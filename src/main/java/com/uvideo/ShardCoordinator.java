@@ -0,0 +1,183 @@
+package com.uvideo;
+
+import lombok.extern.slf4j.Slf4j;
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.FFmpegLogCallback;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+@Slf4j
+public class ShardCoordinator {
+
+    /**
+     * Splits one file into frame ranges, renders each range by a Shard in its own JVM on this host
+     * and joins the results in order.
+     * ShardCoordinator <file> <shards> [NAME=value ...] - renders and joins.
+     * ShardCoordinator --stitch <file> <first>-<last>... [NAME=value ...] - only joins the given shards,
+     *  for shards rendered on other hosts. their segments and text files must be copied to this data_set,
+     *  the settings must be those of the shards, OUTPUT_VIDEO, OUTPUT_TEXT, TEXT_ARCHIVE etc. choose what's joined.
+     * The video segments are joined without re-encoding into <file>_converted.webm, the text
+     * files of the frames into <file>_converted.txt, a line with a form feed after every frame, or
+     * with TEXT_ARCHIVE the archives of the shards into <file>_converted.utxt.
+     * SKIPPED_FRAMES and CREATE_FRAMES of the settings select the part of the file to render.
+     */
+
+    private static List<int[]> split(int from, int to, int shards) {
+        List<int[]> ranges = new ArrayList<>(shards);
+        int count = to - from + 1;
+        for (int i = 0; i < shards; i++) {
+            int first = from + (int) ((long) count * i / shards);
+            int last = from + (int) ((long) count * (i + 1) / shards) - 1;
+            if (last >= first) ranges.add(new int[]{first, last});
+        }
+        return ranges;
+    }
+
+    private static void render(String fileName, List<int[]> ranges, String[] settings) throws IOException, InterruptedException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        List<Process> processes = new ArrayList<>(ranges.size());
+        for (int[] range : ranges) {
+            List<String> command = new ArrayList<>(List.of(java, "-cp", System.getProperty("java.class.path"),
+                    Shard.class.getName(), fileName, String.valueOf(range[0]), String.valueOf(range[1])));
+            command.addAll(Arrays.asList(settings));
+            log.info("shard " + range[0] + ".." + range[1]);
+            processes.add(new ProcessBuilder(command).inheritIO().start());
+        }
+        for (int i = 0; i < processes.size(); i++)
+            if (processes.get(i).waitFor() != 0)
+                throw new IllegalStateException("shard " + ranges.get(i)[0] + ".." + ranges.get(i)[1] + " failed");
+    }
+
+    /**
+     * copies the packets of the segments one after another, the timestamps of each stream are
+     * moved forward if a segment starts before the end of the previous one
+     */
+    public static void stitchVideo(List<String> segments, String dstName) throws Exception {
+        try (FFmpegFrameGrabber first = new FFmpegFrameGrabber(segments.getFirst())) {
+            first.start();
+            try (FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(dstName,
+                    first.getImageWidth(), first.getImageHeight(), first.getAudioChannels())) {
+                recorder.setFormat("webm");
+                recorder.setFrameRate(first.getFrameRate());
+                recorder.setVideoCodec(first.getVideoCodec());
+                if (first.getAudioChannels() > 0) {
+                    recorder.setAudioCodec(first.getAudioCodec());
+                    recorder.setSampleRate(first.getSampleRate());
+                }
+                recorder.start(first.getFormatContext());
+
+                Map<Integer, Long> lastEnd = new HashMap<>();
+                for (int i = 0; i < segments.size(); i++) {
+                    FFmpegFrameGrabber g = i == 0 ? first : new FFmpegFrameGrabber(segments.get(i));
+                    if (i != 0) g.start();
+                    Map<Integer, Long> shift = new HashMap<>();
+                    AVPacket pkt;
+                    while ((pkt = g.grabPacket()) != null) {
+                        int stream = pkt.stream_index();
+                        long dts = pkt.dts();
+                        long s = shift.computeIfAbsent(stream,
+                                k -> lastEnd.containsKey(k) ? Math.max(0, lastEnd.get(k) - dts) : 0);
+                        pkt.pts(pkt.pts() + s);
+                        pkt.dts(dts + s);
+                        lastEnd.put(stream, dts + s + Math.max(1, pkt.duration()));
+                        recorder.recordPacket(pkt);
+                    }
+                    if (i != 0) g.close();
+                }
+                recorder.stop();
+            }
+            first.stop();
+        }
+    }
+
+    public static void stitchText(String fileName, int from, int to) {
+        File dst = new File(fileName.replace(fileName.
+                substring(fileName.lastIndexOf(".")), "_converted.txt"));
+        try (PrintWriter writer = new PrintWriter(dst, StandardCharsets.UTF_8)) {
+            for (int f = from; f <= to; f++) {
+                File text = new File(String.format(MainClass.PATCH + "text\\%s-%03d.txt", "text", f));
+                if (!text.exists()) {
+                    log.warn("no text of frame " + f);
+                    continue;
+                }
+                for (String line : Files.readAllLines(text.toPath(), StandardCharsets.UTF_8))
+                    writer.println(line);
+                writer.println('\f');
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void stitch(String fileName, List<int[]> ranges, RenderConfig config) throws Exception {
+        if (config.OUTPUT_VIDEO) {
+            List<String> segments = new ArrayList<>(ranges.size());
+            for (int[] range : ranges) segments.add(Shard.segmentName(fileName, range[0]));
+            stitchVideo(segments, MainClass.convertedName(fileName));
+            for (String segment : segments) new File(segment).delete();
+        }
+        if (config.OUTPUT_TEXT && config.TEXT_ARCHIVE) {
+            List<File> archives = new ArrayList<>(ranges.size());
+            for (int[] range : ranges) archives.add(TextArchive.archiveName(Shard.segmentName(fileName, range[0])));
+            TextArchive.concat(archives, TextArchive.archiveName(MainClass.convertedName(fileName)),
+                    config.TEXT_KEYFRAMES);
+            for (File archive : archives) archive.delete();
+        } else if (config.OUTPUT_TEXT) stitchText(fileName, ranges.getFirst()[0], ranges.getLast()[1]);
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("usage: ShardCoordinator <file> <shards> [NAME=value ...]");
+            System.out.println("       ShardCoordinator --stitch <file> <first>-<last>... [NAME=value ...]");
+            return;
+        }
+        long startTimeMillis = System.currentTimeMillis();
+        try {
+            if (args[0].equals("--stitch")) {
+                String fileName = MainClass.resolveInput(args[1]);
+                List<int[]> ranges = new ArrayList<>();
+                int i = 2;
+                for (; i < args.length && !args[i].contains("="); i++) {
+                    String[] range = args[i].split("-");
+                    ranges.add(new int[]{Integer.parseInt(range[0]), Integer.parseInt(range[1])});
+                }
+                if (ranges.isEmpty())
+                    throw new IllegalArgumentException("no shards to stitch");
+                RenderConfig config = new RenderConfig()
+                        .parse(String.join(" ", Arrays.copyOfRange(args, i, args.length)));
+                stitch(fileName, ranges, config);
+                return;
+            }
+
+            String fileName = MainClass.resolveInput(args[0]);
+            int shards = Integer.parseInt(args[1]);
+            String[] settings = Arrays.copyOfRange(args, 2, args.length);
+            RenderConfig config = new RenderConfig().parse(String.join(" ", settings));
+            int total;
+            try (FFmpegFrameGrabber g = new FFmpegFrameGrabber(fileName)) {
+                g.start();
+                total = g.getLengthInVideoFrames();
+                g.stop();
+            }
+            int from = config.SKIPPED_FRAMES + 1;
+            int to = config.CREATE_FRAMES > 0 ? Math.min(total, config.SKIPPED_FRAMES + config.CREATE_FRAMES) : total;
+            List<int[]> ranges = split(from, to, shards);
+
+            render(fileName, ranges, settings);
+            stitch(fileName, ranges, config);
+        } catch (Exception e) {
+            e.printStackTrace();
+            FFmpegLogCallback.set();
+        }
+        System.out.println("Runtime: " + TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - startTimeMillis) + "s");
+    }
+}
@@ -0,0 +1,241 @@
+package com.uvideo;
+
+import org.bytedeco.javacv.Java2DFrameConverter;
+import org.bytedeco.javacv.OpenCVFrameConverter;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.opencv.core.CvType.CV_8UC3;
+
+public class StripRenderer {
+
+    /**
+     * Renders a still image larger than STRIP_PIXELS in horizontal strips of STRIP_LINES lines, so the
+     * memory depends on the width and the height of a strip and not on the size of the image.
+     * Every strip is read from the file (ImageIO with a source region), scaled to HEIGHT as a whole
+     * image would be, thresholded with STRIP_PAD more rows above and below, so the adaptive
+     * threshold and the blurs see the same neighbours as in a whole image, rendered and appended to
+     * frames\<name>-001.png, which is written as a stream, and the text to text\<text>-001.txt.
+     * The Otsu threshold of USE_2_THRESH is computed per strip, so it can differ from a whole image.
+     * The debug images, the fill of SPLIT_FILL and the video are not written.
+     */
+
+    static final int STRIP_LINES = 64;
+    private static final int STRIP_PAD = 8;
+
+    private StripRenderer() {
+    }
+
+    /**
+     * the size of the still image, null if it isn't an image ImageIO can read
+     */
+    static Dimension imageSize(String fileName) {
+        try (ImageInputStream in = ImageIO.createImageInputStream(new File(fileName))) {
+            if (in == null) return null;
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) return null;
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    static boolean isLarge(String fileName, RenderConfig config) {
+        if (config.STRIP_PIXELS <= 0) return false;
+        Dimension size = imageSize(fileName);
+        return size != null && (long) size.width * size.height > config.STRIP_PIXELS;
+    }
+
+    /**
+     * returns the rendered image file
+     */
+    static File render(String fileName, String outputName, RenderConfig config, SymbolSet symbolSet) throws IOException {
+        String inputName = fileName.substring(fileName.lastIndexOf("\\") + 1);
+        String name = outputName != null ? outputName : inputName;
+        String textName = outputName != null ? outputName + "-text" : "text";
+        // the strips write their own output
+        RenderConfig strip = config.clone();
+        strip.OUTPUT_TEXT = false;
+        strip.OUTPUT_CANNY = false;
+        strip.OUTPUT_THRESH = false;
+        strip.BACK_SUB = false;
+        boolean text = config.OUTPUT_TEXT && symbolSet.getCharacters().haveChars();
+
+        long startTimeMillis = System.currentTimeMillis();
+        try (ImageInputStream in = ImageIO.createImageInputStream(new File(fileName))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) throw new IOException("not an image " + fileName);
+            ImageReader reader = readers.next();
+            reader.setInput(in, false, true);
+            int sourceWidth = reader.getWidth(0), sourceHeight = reader.getHeight(0);
+            int height = config.HEIGHT >= symbolSet.getHeight() + config.LINE_SPACING ? config.HEIGHT : sourceHeight;
+            int width = (int) ((double) height / sourceHeight * sourceWidth);
+            int lineHeight = symbolSet.getHeight() + config.LINE_SPACING;
+            int stripHeight = lineHeight * STRIP_LINES;
+
+            File file = new File(String.format(MainClass.PATCH + "frames\\%s-%03d.png", name, 1));
+            Java2DFrameConverter java2dFrameConverter = new Java2DFrameConverter();
+            OpenCVFrameConverter.ToOrgOpenCvCoreMat converter = new OpenCVFrameConverter.ToOrgOpenCvCoreMat();
+            try (PngStream png = new PngStream(file, width, height, config.COLORED);
+                 PrintWriter writer = text ? new PrintWriter(MainClass.PATCH + "text\\"
+                         + String.format("%s-%03d.txt", textName, 1), StandardCharsets.UTF_8) : null) {
+                for (int y = 0; y < height; y += stripHeight) {
+                    int rows = Math.min(stripHeight, height - y);
+                    Mat image = read(reader, sourceWidth, sourceHeight, width, height, y, rows);
+                    MainClass.RenderedFrame result = MainClass.renderImage(strip, symbolSet, image, null, null,
+                            1, STRIP_PAD, y / lineHeight, "", textName, java2dFrameConverter, converter);
+                    png.write(result.image);
+                    if (writer != null)
+                        for (String line : result.text) writer.println(line);
+                    System.out.printf("%s %d/%d%n", name, y + rows, height);
+                }
+            } finally {
+                reader.dispose();
+            }
+            System.out.println("Runtime: " + (System.currentTimeMillis() - startTimeMillis) / 1000 + "s");
+            return file;
+        }
+    }
+
+    /**
+     * the rows y..y+rows-1 of the image scaled to width x height, with STRIP_PAD more rows above and
+     * below, reflected at the edges of the image
+     */
+    private static Mat read(ImageReader reader, int sourceWidth, int sourceHeight, int width, int height,
+                            int y, int rows) throws IOException {
+        int top = Math.max(0, y - STRIP_PAD), bottom = Math.min(height, y + rows + STRIP_PAD);
+        double scale = (double) sourceHeight / height;
+        int sourceTop = (int) Math.floor(top * scale);
+        int sourceBottom = Math.min(sourceHeight, (int) Math.ceil(bottom * scale));
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(new Rectangle(0, sourceTop, sourceWidth, sourceBottom - sourceTop));
+        BufferedImage region = reader.read(0, param);
+
+        // BGR, as the frames of the grabber
+        BufferedImage bgr = region;
+        if (region.getType() != BufferedImage.TYPE_3BYTE_BGR) {
+            bgr = new BufferedImage(region.getWidth(), region.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+            Graphics2D g = bgr.createGraphics();
+            g.drawImage(region, 0, 0, null);
+            g.dispose();
+        }
+        Mat mat = new Mat(bgr.getHeight(), bgr.getWidth(), CV_8UC3);
+        mat.put(0, 0, ((DataBufferByte) bgr.getRaster().getDataBuffer()).getData());
+        if (mat.cols() != width || mat.rows() != bottom - top)
+            mat = MainClass.resize(mat, width, bottom - top);
+
+        int padTop = STRIP_PAD - (y - top), padBottom = STRIP_PAD - (bottom - y - rows);
+        if (padTop == 0 && padBottom == 0) return mat;
+        Mat padded = new Mat();
+        Core.copyMakeBorder(mat, padded, padTop, padBottom, 0, 0, Core.BORDER_REFLECT);
+        return padded;
+    }
+
+    /**
+     * a PNG written row by row: the rows are compressed as they come, nothing but a strip is kept
+     */
+    private static final class PngStream implements Closeable {
+        private static final int CHUNK = 1 << 16;
+
+        private final DataOutputStream out;
+        private final DeflaterOutputStream idat;
+        private final ByteArrayOutputStream chunk = new ByteArrayOutputStream(CHUNK);
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private final boolean colored;
+        private final Mat rgb = new Mat();
+        private byte[] pixels = new byte[0];
+
+        PngStream(File file, int width, int height, boolean colored) throws IOException {
+            this.colored = colored;
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), CHUNK));
+            out.write(new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'});
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            DataOutputStream h = new DataOutputStream(header);
+            h.writeInt(width);
+            h.writeInt(height);
+            h.writeByte(8); // bit depth
+            h.writeByte(colored ? 2 : 0); // RGB or gray
+            h.writeByte(0);
+            h.writeByte(0);
+            h.writeByte(0);
+            writeChunk("IHDR", header.toByteArray(), header.size());
+            idat = new DeflaterOutputStream(new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    chunk.write(b, off, len);
+                    if (chunk.size() >= CHUNK) flushChunk();
+                }
+            }, deflater, CHUNK);
+        }
+
+        void write(Mat image) throws IOException {
+            Mat src = image;
+            if (colored) {
+                Imgproc.cvtColor(image, rgb, Imgproc.COLOR_BGR2RGB);
+                src = rgb;
+            }
+            int rowBytes = src.cols() * src.channels();
+            if (pixels.length != rowBytes * src.rows()) pixels = new byte[rowBytes * src.rows()];
+            src.get(0, 0, pixels);
+            for (int r = 0; r < src.rows(); r++) {
+                idat.write(0); // no filter
+                idat.write(pixels, r * rowBytes, rowBytes);
+            }
+        }
+
+        private void flushChunk() throws IOException {
+            writeChunk("IDAT", chunk.toByteArray(), chunk.size());
+            chunk.reset();
+        }
+
+        private void writeChunk(String type, byte[] data, int length) throws IOException {
+            byte[] name = type.getBytes(StandardCharsets.US_ASCII);
+            CRC32 crc = new CRC32();
+            crc.update(name);
+            crc.update(data, 0, length);
+            out.writeInt(length);
+            out.write(name);
+            out.write(data, 0, length);
+            out.writeInt((int) crc.getValue());
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                idat.finish();
+                if (chunk.size() > 0) flushChunk();
+                writeChunk("IEND", new byte[0], 0);
+            } finally {
+                deflater.end();
+                rgb.release();
+                out.close();
+            }
+        }
+    }
+}
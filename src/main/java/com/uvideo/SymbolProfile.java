@@ -0,0 +1,63 @@
+package com.uvideo;
+
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+public class SymbolProfile {
+
+    /**
+     * What the characters of a CharacterSet cost and what they give while it's profiled, see
+     * CharacterSet.startProfile and SymbolProfiler. indexed as the unique characters.
+     * wins - the number of positions the character was chosen for.
+     * margins - the sum of the differences between the compare of the second best character and
+     *  the chosen one at those positions, how much worse a position gets without the character.
+     * nanos - the time spent comparing the character and its rotations.
+     */
+
+    private final boolean spin;
+    private final LongAdder[] wins;
+    private final DoubleAdder[] margins;
+    private final LongAdder[] nanos;
+
+    SymbolProfile(int uniqueSize, boolean spin) {
+        this.spin = spin;
+        wins = new LongAdder[uniqueSize];
+        margins = new DoubleAdder[uniqueSize];
+        nanos = new LongAdder[uniqueSize];
+        for (int i = 0; i < uniqueSize; i++) {
+            wins[i] = new LongAdder();
+            margins[i] = new DoubleAdder();
+            nanos[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * index - the number of the symbol, rotations included
+     */
+    void win(int index, double margin) {
+        if (spin) index /= 3;
+        wins[index].increment();
+        margins[index].add(margin);
+    }
+
+    void spent(int index, long time) {
+        if (spin) index /= 3;
+        nanos[index].add(time);
+    }
+
+    public int size() {
+        return wins.length;
+    }
+
+    public long getWins(int unique) {
+        return wins[unique].sum();
+    }
+
+    public double getMargins(int unique) {
+        return margins[unique].sum();
+    }
+
+    public long getNanos(int unique) {
+        return nanos[unique].sum();
+    }
+}
@@ -0,0 +1,157 @@
+package com.uvideo;
+
+import org.bytedeco.javacv.FFmpegLogCallback;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.stream.IntStream;
+
+public class SymbolProfiler {
+
+    /**
+     * Prunes a SYMBOLS_FOLDER once, instead of removeNull in every render. Renders a sample of frames
+     * of one or more files, measures every character (SymbolProfile) and disables the characters that
+     * give the least for their time, until the time of the compares fits the budget.
+     * SymbolProfiler <budget> <first>-<last> <file>[,<file>...] [NAME=value ...]
+     * budget - the share of the time of the compares to keep, e.g. 0.6.
+     * The value of a character is the sum of its margins, how much worse its positions get without
+     * it, and the characters with the smallest value per time are disabled first. Then the sample
+     * is rendered again without them, the speedup and the share of changed cells are printed and
+     * the set is written to <folder>_pruned_<budget>, a copy of the folder with _false added to the
+     * names of the disabled characters. The original folder is not changed.
+     */
+
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.out.println("usage: SymbolProfiler <budget> <first>-<last> <file>[,<file>...] [NAME=value ...]");
+            return;
+        }
+        try {
+            double budget = Double.parseDouble(args[0]);
+            if (budget <= 0. || budget > 1.)
+                throw new IllegalArgumentException("budget <= 0 || budget > 1");
+            int[] range = Preview.range(args[1]);
+            // resolved first, this initializes MainClass before the symbols are loaded, see SymbolSet.get
+            String[] files = Arrays.stream(args[2].split(",")).map(MainClass::resolveInput).toArray(String[]::new);
+            for (String file : files)
+                if (!new File(file).isFile())
+                    throw new IllegalArgumentException("file not found " + file);
+            RenderConfig config = new RenderConfig()
+                    .parse(String.join(" ", Arrays.copyOfRange(args, 3, args.length)));
+            profile(budget, range, files, config);
+        } catch (Exception e) {
+            e.printStackTrace();
+            FFmpegLogCallback.set();
+        }
+    }
+
+    private static void profile(double budget, int[] range, String[] files, RenderConfig config) throws Exception {
+        SymbolSet symbolSet = SymbolSet.get(config);
+        CharacterSet<?> characters = symbolSet.getCharacters();
+        long[] used = characters.getUsed();
+        boolean[] valid = characters.getValid();
+
+        List<List<MainClass.RenderedFrame>> before = new ArrayList<>();
+        SymbolProfile profile = characters.startProfile();
+        try {
+            for (String file : files) before.add(render(file, range, config, symbolSet));
+        } finally {
+            characters.stopProfile();
+        }
+
+        // the characters with the smallest value per time first
+        long total = IntStream.range(0, profile.size()).mapToLong(profile::getNanos).sum();
+        List<Integer> order = IntStream.range(1, profile.size())
+                .filter(i -> valid[i] && profile.getNanos(i) > 0)
+                .boxed()
+                .sorted(Comparator.comparingDouble(i -> profile.getMargins(i) / profile.getNanos(i)))
+                .toList();
+        boolean[] pruned = valid.clone();
+        long removed = 0;
+        List<Integer> disabled = new ArrayList<>();
+        for (int i : order) {
+            if (total - removed <= budget * total) break;
+            pruned[i] = false;
+            removed += profile.getNanos(i);
+            disabled.add(i);
+        }
+
+        // the profiled render compares all characters completely, so both are timed again
+        long beforeTime, afterTime;
+        long cells = 0, changedCells = 0;
+        try {
+            characters.restore(used, valid);
+            long time = System.currentTimeMillis();
+            for (String file : files) render(file, range, config, symbolSet);
+            beforeTime = System.currentTimeMillis() - time;
+            characters.restore(used, pruned);
+            time = System.currentTimeMillis();
+            List<List<MainClass.RenderedFrame>> after = new ArrayList<>();
+            for (String file : files) after.add(render(file, range, config, symbolSet));
+            afterTime = System.currentTimeMillis() - time;
+
+            for (int f = 0; f < before.size(); f++)
+                for (int n = 0; n < Math.min(before.get(f).size(), after.get(f).size()); n++) {
+                    String[] a = before.get(f).get(n).text, b = after.get(f).get(n).text;
+                    if (a == null || b == null) continue;
+                    for (int l = 0; l < Math.min(a.length, b.length); l++) {
+                        int[] x = a[l].codePoints().toArray(), y = b[l].codePoints().toArray();
+                        cells += Math.max(x.length, y.length);
+                        changedCells += Math.abs(x.length - y.length);
+                        for (int c = 0; c < Math.min(x.length, y.length); c++)
+                            if (x[c] != y[c]) changedCells++;
+                    }
+                }
+        } finally {
+            characters.restore(used, valid);
+        }
+
+        for (int i = 1; i < profile.size(); i++)
+            System.out.printf("number=%d wins=%d margin=%.1f time=%dms%s%n", i + 1, profile.getWins(i),
+                    profile.getWins(i) == 0 ? 0. : profile.getMargins(i) / profile.getWins(i),
+                    profile.getNanos(i) / 1_000_000, pruned[i] || !valid[i] ? "" : " disabled");
+        System.out.printf("disabled=%d expected=x%.2f measured=x%.2f%n", disabled.size(),
+                total == removed ? 0. : (double) total / (total - removed),
+                afterTime == 0 ? 0. : (double) beforeTime / afterTime);
+        if (cells != 0) System.out.printf("changed cells=%.2f%% (%d of %d)%n", changedCells * 100. / cells, changedCells, cells);
+        System.out.println(write(symbolSet.getFolder(), budget, disabled));
+    }
+
+    private static List<MainClass.RenderedFrame> render(String file, int[] range, RenderConfig config,
+                                                        SymbolSet symbolSet) throws Exception {
+        try (Preview preview = new Preview(file)) {
+            return preview.render(range[0], range[1], config, symbolSet);
+        }
+    }
+
+    /**
+     * copies the folder with _false added to the names of the disabled characters, the order of the
+     * names stays the same, so chars.txt is still valid. returns the new folder
+     */
+    private static File write(String folder, double budget, List<Integer> disabled) throws IOException {
+        File src = new File(MainClass.PATCH + folder);
+        File dst = new File(MainClass.PATCH + folder + String.format("_pruned_%02d", (int) Math.round(budget * 100)));
+        if (!dst.exists() && !dst.mkdir())
+            throw new IOException("can't create " + dst);
+        File[] symbols = src.listFiles((dir, name) -> name.endsWith(".png"));
+        File[] others = src.listFiles((dir, name) -> !name.endsWith(".png"));
+        if (symbols == null || others == null)
+            throw new IOException("can't read " + src);
+        // the numbers of the characters are the order of the file names, see SymbolSet
+        Arrays.sort(symbols);
+        Set<Integer> off = new HashSet<>(disabled);
+        for (int i = 0; i < symbols.length; i++) {
+            String name = symbols[i].getName();
+            if (off.contains(i) && !name.contains("_false"))
+                name = name.substring(0, name.length() - ".png".length()) + "_false.png";
+            Files.copy(symbols[i].toPath(), new File(dst, name).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        for (File other : others)
+            if (other.isFile())
+                Files.copy(other.toPath(), new File(dst, other.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return dst;
+    }
+}
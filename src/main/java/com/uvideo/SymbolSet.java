@@ -0,0 +1,220 @@
+package com.uvideo;
+
+import lombok.extern.slf4j.Slf4j;
+import org.opencv.core.*;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static com.uvideo.CharacterSet.*;
+import static org.opencv.core.CvType.CV_8UC1;
+import static org.opencv.imgproc.Imgproc.getRotationMatrix2D;
+import static org.opencv.imgproc.Imgproc.warpAffine;
+
+@Slf4j
+public class SymbolSet {
+
+    /**
+     * The loaded content of one SYMBOLS_FOLDER: the characters, the fill layers and the height
+     * of the symbols. The images are loaded once per folder, SPIN and FILL_ALIGNMENT and shared by
+     * the jobs with the same values, but every get returns a set with its own usage of the
+     * characters (used, valid, popular, see CharacterSet.forJob), so the jobs don't change each other.
+     * fills - the fill layers in the order sorted by file name, see ProcessPixelLine.
+     * kernels - the symbols as ScoreKernels for every DIFF used by a job, built on first use.
+     */
+
+    private static final Map<String, SymbolSet> CACHE = new ConcurrentHashMap<>();
+
+    private final String folder;
+    private final boolean spin;
+    private final boolean fillAlignment;
+    private final CharacterSet<Mat> characters;
+    private final List<FillRingList> fills;
+    private final int height;
+    private final Map<Integer, ScoreKernels> kernels;
+
+    public static SymbolSet get(RenderConfig config) {
+        return get(config.SYMBOLS_FOLDER, config.SPIN, config.FILL_ALIGNMENT);
+    }
+
+    public static SymbolSet get(String folder, boolean spin, boolean fillAlignment) {
+        // MainClass loads OpenCV and the default symbols through this cache when it's initialized, so
+        // it's initialized here, before the cache loads a set, and not from the load of the same key
+        if (MainClass.PATCH == null)
+            throw new IllegalStateException("MainClass.PATCH == null");
+        return new SymbolSet(CACHE.computeIfAbsent(folder + "|" + spin + "|" + fillAlignment,
+                k -> new SymbolSet(folder, spin, fillAlignment)));
+    }
+
+    private SymbolSet(SymbolSet loaded) {
+        folder = loaded.folder;
+        spin = loaded.spin;
+        fillAlignment = loaded.fillAlignment;
+        characters = loaded.characters.forJob();
+        fills = loaded.fills;
+        height = loaded.height;
+        kernels = loaded.kernels;
+    }
+
+    private SymbolSet(String folder, boolean spin, boolean fillAlignment) {
+        long time = System.currentTimeMillis();
+        if (!new File(MainClass.PATCH + folder).exists())
+            throw new IllegalArgumentException("Folder " + MainClass.PATCH + folder + " not found");
+        this.folder = folder;
+        this.spin = spin;
+        this.fillAlignment = fillAlignment;
+        kernels = new ConcurrentHashMap<>();
+
+        List<File> sImages = new ArrayList<>(100);
+        try (Stream<Path> paths = Files.walk(Paths
+                .get(MainClass.PATCH + folder))) {
+            paths
+                    .filter(Files::isRegularFile)
+                    .map(Path::toFile)
+                    .filter(f -> f.getName()
+                            .substring(f.getName()
+                                    .lastIndexOf(".") + 1)
+                            .equals("png"))
+                    .sorted()
+                    .forEach(sImages::add);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        List<Integer> codePoints = new ArrayList<>(sImages.size());
+        try (Scanner sc = new Scanner(new File(MainClass.PATCH + folder + "\\chars.txt"))) {
+            while (sc.hasNext()) {
+                String str = sc.nextLine();
+                if (!str.isEmpty()) codePoints.add(str.codePointAt(str.length() - 1));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        if (codePoints.isEmpty()) log.info("chars.size() == 0");
+        else if (sImages.size() != codePoints.size())
+            throw new IllegalArgumentException("symbols.size() = " + sImages.size()
+                    + " != chars.size() = " + codePoints.size());
+        if (sImages.isEmpty())
+            throw new IllegalArgumentException("sImages == null || sImages.size() == 0");
+
+        List<Integer> flags = new ArrayList<>(sImages.size());
+        for (File sImage : sImages) {
+            String name = sImage.getName();
+            if (name.contains("_false")) {
+                log.info("set flag -1 " + name);
+                flags.add(FLAG_FALSE);
+            } else if (name.contains("_dont_move_x")) {
+                log.info("set flag 1 " + name);
+                flags.add(FLAG_DONT_MOVE_X);
+            } else if (name.matches("\\d{3}_filling_\\d{2}\\D*")) {
+                int number = Integer.parseInt(name.substring(0, 3));
+                log.info("set flag " + (FLAG_FILLING + number) + " " + name);
+                flags.add(FLAG_FILLING + number);
+            } else if (name.contains("_filling")) {
+                log.info("set flag 2 " + name);
+                flags.add(FLAG_FILLING_SOLO);
+            } else if (name.contains("_dont_move")) {
+                log.info("set flag 3 " + name);
+                flags.add(FLAG_DONT_MOVE);
+            } else if (name.contains("_dont_spin")) {
+                log.info("set flag 4 " + name);
+                flags.add(FLAG_DONT_SPIN);
+            } else flags.add(FLAG_DEFAULT);
+        }
+        List<Mat> symbols, tempSymbols = new ArrayList<>(sImages.size());
+        sImages.forEach(i -> tempSymbols.add(Imgcodecs.imread(i.getAbsolutePath(), CV_8UC1)));
+
+        if (spin) {
+            symbols = new ArrayList<>(tempSymbols.size() * 3);
+            for (Mat symbol : tempSymbols) {
+                Mat white = new Mat(symbol.rows(), symbol.cols(), CV_8UC1, new Scalar(255));
+                Mat invSymbol = new Mat(symbol.rows(), symbol.cols(), CV_8UC1);
+                Core.subtract(white, symbol, invSymbol);
+                Mat temp = rotate(invSymbol, 8.);
+                Mat rLeft = new Mat(symbol.rows(), symbol.cols(), CV_8UC1);
+                Core.subtract(white, temp, rLeft);
+                temp = rotate(invSymbol, -8.);
+                Mat rRight = new Mat(symbol.rows(), symbol.cols(), CV_8UC1);
+                Core.subtract(white, temp, rRight);
+                symbols.add(symbol);
+                symbols.add(rLeft);
+                symbols.add(rRight);
+            }
+        } else symbols = tempSymbols;
+
+        characters = new CharacterSet<>(Mat.class, symbols, flags, codePoints, spin);
+
+        List<List<Pair<Integer, Integer>>> layers = new ArrayList<>();
+        int currentLayerNumber = -1;
+        for (int i = 0; i < flags.size(); i++) {
+            int flag = flags.get(i);
+            int sNumber = spin ? i * 3 : i;
+            if (flag == FLAG_FILLING_SOLO) {
+                layers.add(new ArrayList<>(List.of(new Pair<>(symbols.get(sNumber).cols(), sNumber))));
+            } else if (flag / FLAG_FILLING == 1) {
+                int number = flag % FLAG_FILLING;
+                if (currentLayerNumber != number) {
+                    layers.add(new ArrayList<>());
+                    currentLayerNumber = number;
+                }
+                layers.getLast().add(new Pair<>(symbols.get(sNumber).cols(), sNumber));
+            }
+        }
+        fills = new ArrayList<>(layers.size());
+        for (var layer : layers) fills.add(new FillRingList(layer, fillAlignment));
+
+        height = symbols.getFirst().rows();
+        time = System.currentTimeMillis() - time;
+        System.out.println("Loaded images " + folder + " " + TimeUnit.MILLISECONDS.toSeconds(time) + "s");
+    }
+
+    private static Mat rotate(Mat src, double angle) {
+        Mat dst = new Mat(src.rows(), src.cols(), src.type());
+        Point pt = new Point(src.cols() / 2., src.rows() / 2.);
+        Mat r = getRotationMatrix2D(pt, angle, 1.0);
+        warpAffine(src, dst, r, new Size(src.cols(), src.rows()));
+        return dst;
+    }
+
+    public void outputStatsToFile(String inputFileName) {
+        characters.outputStatsToFile(new File(String.format("%s%s\\stats_%s_%s.txt"
+                , MainClass.PATCH, folder, folder, inputFileName)));
+    }
+
+    public String getFolder() {
+        return folder;
+    }
+
+    public boolean isSpin() {
+        return spin;
+    }
+
+    public boolean isFillAlignment() {
+        return fillAlignment;
+    }
+
+    public CharacterSet<Mat> getCharacters() {
+        return characters;
+    }
+
+    public List<FillRingList> getFills() {
+        return fills;
+    }
+
+    public ScoreKernels getKernels(int diff) {
+        return kernels.computeIfAbsent(diff, d -> new ScoreKernels(characters, d));
+    }
+
+    public int getHeight() {
+        return height;
+    }
+}
@@ -0,0 +1,331 @@
+package com.uvideo;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+@Slf4j
+public class TextArchive {
+
+    /**
+     * The text of all frames of a file in one archive instead of a text file per frame, written with
+     * TEXT_ARCHIVE next to the output video as <file>_converted.utxt.
+     * The archive is written as a stream: the header MAGIC VERSION, then a block per frame - the frame
+     * number, the kind of the block, the length of the payload, the length of the compressed payload
+     * and the payload compressed by Deflater BEST_SPEED. The payload of a KEYFRAME is the text, the
+     * lines separated by \n, of a DELTA - the changes against the previous frame, see TextDelta.
+     * A keyframe is written every keyframeInterval frames (TEXT_KEYFRAMES, 1 - only keyframes), after
+     * a missing frame and on a scene cut, when most of the text has changed. A playback reading the
+     * frames in order only applies the deltas. At the end the index - the first frame, the
+     * number of frames and the offset of the block of every frame, -1 if there is no such frame, and
+     * the offset of the index with INDEX_MAGIC. An archive without the index, e.g. of a render stopped
+     * by a crash, is read by its blocks.
+     * TextArchive <archive> <frame>[-<last>] prints the text of the frames.
+     * Version 1 had only keyframes and no kind, it's still read.
+     */
+
+    private static final int MAGIC = 0x55545854;       // UTXT
+    private static final int INDEX_MAGIC = 0x55545849; // UTXI
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 8, BLOCK_HEADER_SIZE = 16, TRAILER_SIZE = 12;
+    private static final int KEYFRAME = 0, DELTA = 1;
+
+    public static File archiveName(String dstName) {
+        return new File(dstName.replace(dstName.
+                substring(dstName.lastIndexOf(".")), ".utxt"));
+    }
+
+    public static class Writer implements Closeable {
+
+        private final FileChannel channel;
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        private long[] offsets = new long[1024];
+        private int firstFrame = -1, lastFrame = -1, count = 0;
+        private final int keyframeInterval;
+        private String[] previousLines;
+        private int sinceKeyframe;
+
+        public Writer(File file) throws IOException {
+            this(file, 1);
+        }
+
+        public Writer(File file, int keyframeInterval) throws IOException {
+            this.keyframeInterval = keyframeInterval;
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).flip();
+            while (header.hasRemaining()) channel.write(header);
+        }
+
+        /**
+         * the blocks are read by the channel, not mapped, a mapped file can't be truncated on Windows
+         */
+        private Writer(File file, int lastFrame, int keyframeInterval) throws IOException {
+            this.keyframeInterval = keyframeInterval;
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+            long offset = HEADER_SIZE, size = channel.size();
+            if (size < HEADER_SIZE || readFully(header.limit(HEADER_SIZE), 0).getInt(0) != MAGIC
+                    || header.getInt(4) != VERSION) {
+                channel.close();
+                throw new IOException("not a text archive of version " + VERSION + ": " + file);
+            }
+            while (offset + BLOCK_HEADER_SIZE <= size) {
+                readFully(header.clear(), offset);
+                int frameNumber = header.getInt(0), length = header.getInt(12);
+                // the index after the blocks never looks like the next block
+                if (frameNumber > lastFrame || frameNumber <= this.lastFrame
+                        || length <= 0 || offset + BLOCK_HEADER_SIZE + length > size) break;
+                index(frameNumber, offset);
+                offset += BLOCK_HEADER_SIZE + length;
+            }
+            channel.truncate(offset);
+            channel.position(offset);
+        }
+
+        private ByteBuffer readFully(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining())
+                if (channel.read(buffer, position + buffer.position()) < 0) throw new EOFException();
+            return buffer;
+        }
+
+        /**
+         * continues the archive after the frame lastFrame, the frames after it and the index are removed.
+         * the next frame is a keyframe
+         */
+        public static Writer resume(File file, int lastFrame, int keyframeInterval) throws IOException {
+            if (!file.exists()) return new Writer(file, keyframeInterval);
+            return new Writer(file, lastFrame, keyframeInterval);
+        }
+
+        private void index(int frameNumber, long offset) {
+            if (firstFrame == -1) firstFrame = frameNumber;
+            int i = frameNumber - firstFrame;
+            if (i >= offsets.length) offsets = Arrays.copyOf(offsets, Math.max(i + 1, offsets.length * 2));
+            Arrays.fill(offsets, count, i, -1);
+            offsets[i] = offset;
+            count = i + 1;
+            lastFrame = frameNumber;
+        }
+
+        /**
+         * the frames must be appended in ascending order
+         */
+        public synchronized void append(int frameNumber, String[] lines) throws IOException {
+            if (frameNumber <= lastFrame)
+                throw new IllegalArgumentException("frame " + frameNumber + " after frame " + lastFrame);
+            byte[] text = null;
+            if (keyframeInterval > 1 && previousLines != null && frameNumber == lastFrame + 1
+                    && sinceKeyframe < keyframeInterval)
+                text = TextDelta.encode(previousLines, lines);
+            int kind = text != null ? DELTA : KEYFRAME;
+            if (kind == KEYFRAME) {
+                text = String.join("\n", lines).getBytes(StandardCharsets.UTF_8);
+                sinceKeyframe = 0;
+            }
+            sinceKeyframe++;
+            previousLines = lines.clone();
+
+            deflater.reset();
+            deflater.setInput(text);
+            deflater.finish();
+            int capacity = BLOCK_HEADER_SIZE + text.length + text.length / 1000 + 64;
+            if (buffer.capacity() < capacity) buffer = ByteBuffer.allocate(capacity);
+            byte[] array = buffer.array();
+            int compressed = BLOCK_HEADER_SIZE;
+            while (!deflater.finished())
+                compressed += deflater.deflate(array, compressed, array.length - compressed);
+            buffer.clear();
+            buffer.putInt(frameNumber).putInt(kind).putInt(text.length).putInt(compressed - BLOCK_HEADER_SIZE);
+            buffer.position(0).limit(compressed);
+
+            index(frameNumber, channel.position());
+            while (buffer.hasRemaining()) channel.write(buffer);
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            try {
+                long indexOffset = channel.position();
+                ByteBuffer index = ByteBuffer.allocate(8 + count * 8 + TRAILER_SIZE);
+                index.putInt(Math.max(firstFrame, 0)).putInt(count);
+                for (int i = 0; i < count; i++) index.putLong(offsets[i]);
+                index.putLong(indexOffset).putInt(INDEX_MAGIC).flip();
+                while (index.hasRemaining()) channel.write(index);
+            } finally {
+                channel.close();
+                deflater.end();
+            }
+        }
+    }
+
+    public static class Reader implements Closeable {
+
+        private final MappedByteBuffer data;
+        private final Inflater inflater = new Inflater();
+        private final int version, blockHeaderSize;
+        private final int firstFrame;
+        private final long[] offsets;
+        // the last decoded frame, the next one only applies its delta
+        private int decodedFrame = -1;
+        private String[] decodedLines;
+
+        /**
+         * maps the archive into memory, the frames are decompressed by frame
+         */
+        public Reader(File file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                if (channel.size() > Integer.MAX_VALUE)
+                    throw new IOException("the archive is larger than 2GB: " + file);
+                data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            if (data.limit() < HEADER_SIZE || data.getInt(0) != MAGIC)
+                throw new IOException("not a text archive: " + file);
+            version = data.getInt(4);
+            if (version != 1 && version != VERSION)
+                throw new IOException("unknown version " + version + " of the text archive: " + file);
+            blockHeaderSize = version == 1 ? 12 : BLOCK_HEADER_SIZE;
+
+            int end = data.limit();
+            if (end >= HEADER_SIZE + TRAILER_SIZE && data.getInt(end - 4) == INDEX_MAGIC) {
+                int indexOffset = (int) data.getLong(end - TRAILER_SIZE);
+                firstFrame = data.getInt(indexOffset);
+                offsets = new long[data.getInt(indexOffset + 4)];
+                for (int i = 0; i < offsets.length; i++) offsets[i] = data.getLong(indexOffset + 8 + i * 8);
+            } else {
+                // no index, the blocks are read up to the last complete one
+                log.warn("the text archive has no index, reading the blocks: " + file);
+                long[] found = new long[1024];
+                int first = -1, count = 0;
+                int offset = HEADER_SIZE;
+                while (offset + blockHeaderSize <= end) {
+                    int frameNumber = data.getInt(offset), length = compressedLength(offset);
+                    if (length <= 0 || offset + blockHeaderSize + length > end) break;
+                    if (first == -1) first = frameNumber;
+                    int i = frameNumber - first;
+                    if (i < count) break;
+                    if (i >= found.length) found = Arrays.copyOf(found, Math.max(i + 1, found.length * 2));
+                    Arrays.fill(found, count, i, -1);
+                    found[i] = offset;
+                    count = i + 1;
+                    offset += blockHeaderSize + length;
+                }
+                firstFrame = Math.max(first, 0);
+                offsets = Arrays.copyOf(found, count);
+            }
+        }
+
+        public int firstFrame() {
+            return firstFrame;
+        }
+
+        public int lastFrame() {
+            return firstFrame + offsets.length - 1;
+        }
+
+        private long offset(int frameNumber) {
+            int i = frameNumber - firstFrame;
+            return i < 0 || i >= offsets.length ? -1 : offsets[i];
+        }
+
+        private int kind(int block) {
+            return version == 1 ? KEYFRAME : data.getInt(block + 4);
+        }
+
+        private int compressedLength(int block) {
+            return data.getInt(block + blockHeaderSize - 4);
+        }
+
+        private byte[] payload(int block, int frameNumber) throws IOException {
+            byte[] payload = new byte[data.getInt(block + blockHeaderSize - 8)];
+            inflater.reset();
+            inflater.setInput(data.slice(block + blockHeaderSize, compressedLength(block)));
+            try {
+                int length = 0;
+                while (length < payload.length && !inflater.finished())
+                    length += inflater.inflate(payload, length, payload.length - length);
+            } catch (DataFormatException e) {
+                throw new IOException("the frame " + frameNumber + " is damaged", e);
+            }
+            return payload;
+        }
+
+        /**
+         * the lines of the frame, null if the archive doesn't have it. a delta frame is rebuilt from
+         * its keyframe, or from the last read frame if the frames are read in order
+         */
+        public synchronized String[] frame(int frameNumber) throws IOException {
+            if (offset(frameNumber) == -1) return null;
+            if (frameNumber != decodedFrame) {
+                // the nearest keyframe or the decoded frame before this one
+                int from = frameNumber;
+                while (from != decodedFrame + 1 || decodedLines == null) {
+                    long offset = offset(from);
+                    if (offset == -1)
+                        throw new IOException("the keyframe of the frame " + frameNumber + " is missing");
+                    if (kind((int) offset) == KEYFRAME) break;
+                    from--;
+                }
+                for (int f = from; f <= frameNumber; f++) {
+                    int block = (int) offset(f);
+                    byte[] payload = payload(block, f);
+                    if (kind(block) == KEYFRAME)
+                        decodedLines = new String(payload, StandardCharsets.UTF_8).split("\n", -1);
+                    else decodedLines = TextDelta.decode(decodedLines, payload);
+                    decodedFrame = f;
+                }
+            }
+            return decodedLines.clone();
+        }
+
+        @Override
+        public void close() {
+            inflater.end();
+        }
+    }
+
+    /**
+     * joins the archives of consecutive parts of a file, e.g. of shards, into one
+     */
+    public static void concat(List<File> archives, File dst, int keyframeInterval) throws IOException {
+        try (Writer writer = new Writer(dst, keyframeInterval)) {
+            for (File archive : archives) {
+                try (Reader reader = new Reader(archive)) {
+                    for (int f = reader.firstFrame(); f <= reader.lastFrame(); f++) {
+                        String[] lines = reader.frame(f);
+                        if (lines != null) writer.append(f, lines);
+                    }
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("usage: TextArchive <archive> <frame>[-<last>]");
+            return;
+        }
+        try (Reader reader = new Reader(new File(MainClass.resolveInput(args[0])))) {
+            int[] range = Preview.range(args[1]);
+            for (int f = range[0]; f <= range[1]; f++) {
+                String[] lines = reader.frame(f);
+                if (lines == null) continue;
+                for (String line : lines) System.out.println(line);
+                System.out.println('\f');
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.uvideo;
+
+import java.io.*;
+
+final class TextDelta {
+
+    /**
+     * The changes of the text of a frame against the previous frame, the payload of a delta block of
+     * TextArchive: the number of lines, the number of changed lines and for each of them its index
+     * and the number of runs, then the runs - the first cell (code point) of a run and its new code
+     * points. A line with another number of cells is stored whole, with -1 runs.
+     * SCENE_CUT - the share of changed cells from which a frame is stored as a keyframe.
+     * MERGE_GAP - runs closer than this number of unchanged cells are stored as one run.
+     */
+
+    static final double SCENE_CUT = 0.5;
+    private static final int MERGE_GAP = 4;
+
+    private TextDelta() {
+    }
+
+    /**
+     * returns null if the frame is a scene cut and should be a keyframe
+     */
+    static byte[] encode(String[] previous, String[] lines) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        long cells = 0, changedCells = 0;
+        int changedLines = 0;
+        ByteArrayOutputStream lineBytes = new ByteArrayOutputStream();
+        DataOutputStream lineOut = new DataOutputStream(lineBytes);
+
+        for (int i = 0; i < lines.length; i++) {
+            int[] now = lines[i].codePoints().toArray();
+            cells += now.length;
+            if (i < previous.length && previous[i].equals(lines[i])) continue;
+            changedLines++;
+            lineOut.writeInt(i);
+            int[] before = i < previous.length ? previous[i].codePoints().toArray() : null;
+            if (before == null || before.length != now.length) {
+                lineOut.writeInt(-1);
+                lineOut.writeUTF(lines[i]);
+                changedCells += now.length;
+                continue;
+            }
+            // the runs of changed cells, close runs are merged
+            int runs = 0;
+            ByteArrayOutputStream runBytes = new ByteArrayOutputStream();
+            DataOutputStream runOut = new DataOutputStream(runBytes);
+            int c = 0;
+            while (c < now.length) {
+                if (now[c] == before[c]) {
+                    c++;
+                    continue;
+                }
+                int start = c, end = c + 1, gap = 0;
+                for (int k = c + 1; k < now.length && gap < MERGE_GAP; k++) {
+                    if (now[k] != before[k]) {
+                        end = k + 1;
+                        gap = 0;
+                    } else gap++;
+                }
+                runOut.writeInt(start);
+                runOut.writeUTF(new String(now, start, end - start));
+                changedCells += end - start;
+                runs++;
+                c = end;
+            }
+            lineOut.writeInt(runs);
+            runBytes.writeTo(lineOut);
+        }
+
+        if (cells == 0 || changedCells > SCENE_CUT * cells) return null;
+        out.writeInt(lines.length);
+        out.writeInt(changedLines);
+        lineOut.flush();
+        lineBytes.writeTo(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    static String[] decode(String[] previous, byte[] delta) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(delta));
+        String[] lines = new String[in.readInt()];
+        System.arraycopy(previous, 0, lines, 0, Math.min(previous.length, lines.length));
+        int changedLines = in.readInt();
+        for (int l = 0; l < changedLines; l++) {
+            int i = in.readInt(), runs = in.readInt();
+            if (runs == -1) {
+                lines[i] = in.readUTF();
+                continue;
+            }
+            int[] cells = lines[i].codePoints().toArray();
+            for (int r = 0; r < runs; r++) {
+                int start = in.readInt();
+                int[] run = in.readUTF().codePoints().toArray();
+                System.arraycopy(run, 0, cells, start, run.length);
+            }
+            lines[i] = new String(cells, 0, cells.length);
+        }
+        return lines;
+    }
+}
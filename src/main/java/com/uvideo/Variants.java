@@ -0,0 +1,202 @@
+package com.uvideo;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.Java2DFrameConverter;
+import org.bytedeco.javacv.OpenCVFrameConverter;
+import org.opencv.core.Mat;
+import org.opencv.video.Video;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.opencv.core.CvType.CV_8UC1;
+
+public class Variants {
+
+    /**
+     * Renders a video with several settings in one run, e.g. to choose the characters or DIFF:
+     * VARIANTS=SYMBOLS_FOLDER=MS_Gothic.ttf_14_00,DIFF=20|SYMBOLS_FOLDER=MS_PGothic.ttf_15_00|FILL_DEPTH=50
+     * the variants are separated by |, their settings by commas, and change the other settings.
+     * Every frame is decoded once and the gray image and the thresholds are made once for all
+     * variants with the same thresholdKey, only DIFF is added per variant. Then the variants are
+     * rendered at the same time, their lines share the line workers, and each is written to its own
+     * <file>_converted_v<n>.webm, text and frames named <output>-v<n>. The variants are printed at
+     * the start. All of them have the HEIGHT and AUDIO of the render, FLUCTUATIONS_HEIGHT, HEIGHTS,
+     * CHECKPOINT_FRAMES and ENCODER=pipe aren't supported.
+     */
+
+    private static final ExecutorService VARIANT_EXECUTOR = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("variant-%d").setDaemon(true).build());
+
+    private Variants() {
+    }
+
+    static List<RenderConfig> variants(RenderConfig config) {
+        List<RenderConfig> variants = new ArrayList<>();
+        for (String variant : config.VARIANTS.split("\\|")) {
+            RenderConfig c = config.clone();
+            c.VARIANTS = "";
+            variants.add(c.parse(variant.replace(',', ' ')));
+        }
+        return variants;
+    }
+
+    public static String variantName(String dstName, int number) {
+        return dstName.replace(dstName.
+                substring(dstName.lastIndexOf(".")), String.format("_v%d.webm", number));
+    }
+
+    public static int convert(String fileName, String dstName, String outputName, RenderConfig config,
+                              MainClass.Progress progress) throws Exception {
+        List<RenderConfig> configs = variants(config);
+        if (config.FLUCTUATIONS_HEIGHT != 0. || !config.HEIGHTS.isEmpty() || config.CHECKPOINT_FRAMES > 0)
+            throw new IllegalArgumentException("VARIANTS with FLUCTUATIONS_HEIGHT, HEIGHTS or CHECKPOINT_FRAMES");
+        int lineHeight = 0;
+        for (RenderConfig c : configs) {
+            if (c.HEIGHT != config.HEIGHT || c.FLUCTUATIONS_HEIGHT != 0. || !c.HEIGHTS.isEmpty()
+                    || !c.AUDIO.equals(config.AUDIO) || c.CHECKPOINT_FRAMES > 0 || c.ENCODER.equals("pipe"))
+                throw new IllegalArgumentException("a variant can't change HEIGHT, FLUCTUATIONS_HEIGHT, HEIGHTS, "
+                        + "AUDIO or CHECKPOINT_FRAMES or use ENCODER=pipe");
+            lineHeight = Math.max(lineHeight, SymbolSet.get(c).getHeight() + c.LINE_SPACING);
+        }
+        String inputName = fileName.substring(fileName.lastIndexOf("\\") + 1);
+        int createdVFrNumber = 0;
+
+        try (FFmpegFrameGrabber g = new FFmpegFrameGrabber(fileName)) {
+            if (config.FRAMERATE > 0) g.setFrameRate(config.FRAMERATE);
+            g.start();
+            if (config.HEIGHT >= lineHeight) {
+                g.setImageWidth((int) ((double) config.HEIGHT / g.getImageHeight() * g.getImageWidth()));
+                g.setImageHeight(config.HEIGHT);
+            }
+            final int width = g.getImageWidth(), height = g.getImageHeight();
+            final int totalCreateVFrames = g.getLengthInVideoFrames() - config.SKIPPED_FRAMES;
+            final String audio = MainClass.audio(g, config);
+            final boolean copyAudio = audio.equals("copy"), encodeAudio = audio.equals("encode");
+            final int audioChannels = encodeAudio ? g.getAudioChannels() : 0;
+
+            List<Ladder.Rendition> renditions = new ArrayList<>(configs.size());
+            // the variants that share the thresholds, by thresholdKey, and their BACK_SUB
+            Map<String, Ladder.Rendition> thresholdOwners = new LinkedHashMap<>();
+            try {
+                for (int i = 0; i < configs.size(); i++) {
+                    RenderConfig c = configs.get(i);
+                    SymbolSet symbolSet = SymbolSet.get(c);
+                    String dst = variantName(dstName, i + 1);
+                    Ladder.Rendition r = new Ladder.Rendition(c, symbolSet, width, height,
+                            (outputName != null ? outputName : "frame") + "-v" + (i + 1),
+                            dst, copyAudio ? MainClass.videoName(dst) : dst);
+                    if (c.OUTPUT_TEXT && c.TEXT_ARCHIVE && symbolSet.getCharacters().haveChars())
+                        r.archive = new TextArchive.Writer(TextArchive.archiveName(dst), c.TEXT_KEYFRAMES);
+                    if (!thresholdOwners.containsKey(MainClass.thresholdKey(c))) {
+                        thresholdOwners.put(MainClass.thresholdKey(c), r);
+                        if (c.BACK_SUB) {
+                            r.fgMask = new Mat(height, width, CV_8UC1);
+                            r.backSub = Video.createBackgroundSubtractorKNN(1, 50, false);
+                        }
+                    }
+                    renditions.add(r);
+                    System.out.printf("v%d: %s%n", i + 1, config.VARIANTS.split("\\|")[i]);
+                }
+
+                // the converters aren't shared by the threads of the variants
+                Java2DFrameConverter[] java2dFrameConverters = new Java2DFrameConverter[renditions.size()];
+                OpenCVFrameConverter.ToOrgOpenCvCoreMat[] converters = new OpenCVFrameConverter.ToOrgOpenCvCoreMat[renditions.size()];
+                for (int i = 0; i < renditions.size(); i++) {
+                    java2dFrameConverters[i] = new Java2DFrameConverter();
+                    converters[i] = new OpenCVFrameConverter.ToOrgOpenCvCoreMat();
+                }
+                OpenCVFrameConverter.ToOrgOpenCvCoreMat decoder = new OpenCVFrameConverter.ToOrgOpenCvCoreMat();
+                Set<SymbolSet> symbolSets = Collections.newSetFromMap(new IdentityHashMap<>());
+                for (Ladder.Rendition r : renditions) symbolSets.add(r.symbolSet);
+                Frame fr;
+                int vFrNumber = 0;
+                long startTimeMillis = System.currentTimeMillis(), timestamp;
+
+                if (config.SKIPPED_FRAMES > 0) {
+                    g.setVideoFrameNumber(config.SKIPPED_FRAMES);
+                    vFrNumber = config.SKIPPED_FRAMES;
+                }
+
+                while ((fr = encodeAudio ? g.grab() : g.grabImage()) != null) {
+                    timestamp = g.getTimestamp();
+
+                    if (fr.image != null) {
+                        vFrNumber++;
+                        if (vFrNumber <= config.SKIPPED_FRAMES) continue;
+                        createdVFrNumber++;
+                        Mat image = decoder.convert(fr);
+
+                        Map<String, MainClass.Thresholds> thresholds = new HashMap<>();
+                        for (Map.Entry<String, Ladder.Rendition> owner : thresholdOwners.entrySet()) {
+                            Ladder.Rendition r = owner.getValue();
+                            thresholds.put(owner.getKey(), MainClass.threshold(r.config, image, r.backSub, r.fgMask,
+                                    vFrNumber, r.debugName, java2dFrameConverters[0], converters[0]));
+                        }
+
+                        final int number = vFrNumber;
+                        List<CompletableFuture<MainClass.RenderedFrame>> results = new ArrayList<>(renditions.size());
+                        for (int i = 0; i < renditions.size(); i++) {
+                            Ladder.Rendition r = renditions.get(i);
+                            MainClass.Thresholds t = thresholds.get(MainClass.thresholdKey(r.config));
+                            Java2DFrameConverter j2d = java2dFrameConverters[i];
+                            OpenCVFrameConverter.ToOrgOpenCvCoreMat converter = converters[i];
+                            results.add(CompletableFuture.supplyAsync(() -> {
+                                try {
+                                    return MainClass.renderThresholds(r.config, r.symbolSet, image, t, number, 0, 0,
+                                            r.debugName, r.textName, j2d, converter);
+                                } catch (IOException e) {
+                                    throw new UncheckedIOException(e);
+                                }
+                            }, VARIANT_EXECUTOR));
+                        }
+                        for (int i = 0; i < renditions.size(); i++) {
+                            MainClass.RenderedFrame result;
+                            try {
+                                result = results.get(i).get();
+                            } catch (ExecutionException e) {
+                                throw e.getCause() instanceof Exception cause ? cause : e;
+                            }
+                            Ladder.output(renditions.get(i), result, vFrNumber, timestamp, g, audioChannels,
+                                    java2dFrameConverters[i], converters[i]);
+                        }
+
+                        System.out.printf("%s-%03d%n", renditions.getFirst().name, vFrNumber);
+                        if (createdVFrNumber == 500 && !config.DETERMINISTIC)
+                            for (SymbolSet s : symbolSets) s.getCharacters().removeNull(config.REMOVE_NULL);
+                        if (createdVFrNumber % 500 == 0)
+                            for (SymbolSet s : symbolSets) s.outputStatsToFile(inputName);
+
+                        long leftTimeMillis = (System.currentTimeMillis() - startTimeMillis) / createdVFrNumber
+                                * ((config.CREATE_FRAMES > 0 ? config.CREATE_FRAMES : totalCreateVFrames) - createdVFrNumber);
+                        System.out.println(TimeUnit.MILLISECONDS.toMinutes(leftTimeMillis) + " minutes left");
+                        if (progress != null)
+                            progress.frame(createdVFrNumber, config.CREATE_FRAMES > 0 ? config.CREATE_FRAMES : totalCreateVFrames);
+                    } else {
+                        // the audio of every variant, the sinks copy the frame
+                        for (Ladder.Rendition r : renditions)
+                            if (r.config.OUTPUT_VIDEO) Ladder.record(r, fr, timestamp, g, audioChannels);
+                    }
+
+                    if (config.CREATE_FRAMES > 0 && config.CREATE_FRAMES <= createdVFrNumber) break;
+                }
+
+                System.out.println("Runtime: " + TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - startTimeMillis) + "s");
+                for (SymbolSet s : symbolSets) System.out.println("Cells " + s.getFolder() + ": " + s.getCharacters().getCellStats());
+                Ladder.finish(renditions, copyAudio, fileName);
+            } finally {
+                Ladder.close(renditions);
+            }
+            g.stop();
+        }
+        return createdVFrNumber;
+    }
+}